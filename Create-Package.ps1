@@ -10,7 +10,7 @@ jpackage `
     --input .\target `
     --dest .\package `
     --type msi `
-    --main-class cloud.bernardi.pdfjuggler.MainFrame `
+    --main-class cloud.bernardi.pdfjuggler.Main `
     --main-jar pdfjuggler-${Version}-jar-with-dependencies.jar `
     --icon graphics/icon-32.ico `
     --description "Sort, merge and cut the pages of PDF documents." `
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.openjdk.jmh.Main;
+
+/**
+ * Runs the benchmarks like the JMH command line does, but writes the results
+ * as JSON to jmh-result.json unless another result format or file is given,
+ * so that runs on different commits can be compared.
+ *
+ * @author rnd
+ */
+public class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * @param args the JMH command line options
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!options.contains("-rf")) {
+            options.add("-rf");
+            options.add("json");
+        }
+        Main.main(options.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler.benchmarks;
+
+import cloud.bernardi.pdfjuggler.SourceRegistry;
+import cloud.bernardi.pdfjuggler.ThumbnailRenderer;
+import cloud.bernardi.pdfjuggler.ThumbnailStore;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The path a file goes through when it is added to the session: reading its
+ * page tree, rendering the thumbnails of all its pages and compressing them
+ * into the thumbnail store.
+ *
+ * @author rnd
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RenderBenchmark {
+
+    @Param({"TEXT", "IMAGE"})
+    public SyntheticPdfs.Kind kind;
+
+    /**
+     * The preview resolution and one fitted to the default zoom.
+     */
+    @Param({"10", "24"})
+    public int dpi;
+
+    private File file;
+    private ThumbnailRenderer renderer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = SyntheticPdfs.get(kind);
+        renderer = new ThumbnailRenderer(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        renderer.shutdown();
+    }
+
+    /**
+     * Read the page sizes and rotations, as done before a file's pages are
+     * shown, on a registry that has not parsed the file yet.
+     *
+     * @param blackhole
+     * @throws IOException
+     */
+    @Benchmark
+    public void readPages(Blackhole blackhole) throws IOException {
+        SourceRegistry registry = new SourceRegistry(MemoryUsageSetting.setupTempFileOnly());
+        try {
+            blackhole.consume(registry.readPages(file));
+        } finally {
+            registry.closeAll();
+        }
+    }
+
+    /**
+     * Render every page; the renderer keeps its copies of the document open
+     * between invocations, as it does between the files of a session.
+     *
+     * @param blackhole
+     * @throws IOException
+     */
+    @Benchmark
+    public void render(Blackhole blackhole) throws IOException {
+        renderer.render(file, kind.getDefaultPages(), dpi, (page, image, embedded) -> blackhole.consume(image));
+    }
+
+    /**
+     * Render every page and compress the thumbnails for the store.
+     *
+     * @param blackhole
+     * @throws IOException
+     */
+    @Benchmark
+    public void renderAndStore(Blackhole blackhole) throws IOException {
+        renderer.render(file, kind.getDefaultPages(), dpi,
+                (page, image, embedded) -> blackhole.consume(ThumbnailStore.compress(image, dpi)));
+    }
+}
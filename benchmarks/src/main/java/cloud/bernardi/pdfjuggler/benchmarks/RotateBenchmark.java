@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler.benchmarks;
+
+import cloud.bernardi.pdfjuggler.Page;
+import cloud.bernardi.pdfjuggler.PageListModel;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rotating every page of a long session, both on the pages alone and
+ * through the page list, which also notifies the change and records it for
+ * undo.
+ *
+ * @author rnd
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RotateBenchmark {
+
+    @Param({"10000"})
+    public int pages;
+
+    private List<Page> pageList;
+    private PageListModel model;
+    private int[] indices;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        File file = new File("synthetic.pdf");
+        pageList = new ArrayList<>(pages);
+        for (int i = 0; i < pages; ++i) {
+            pageList.add(new Page(i, file, 595, 842, 0));
+        }
+        model = new PageListModel();
+        model.add(pageList);
+        indices = new int[pages];
+        for (int i = 0; i < pages; ++i) {
+            indices[i] = i;
+        }
+    }
+
+    /**
+     * Rotate the pages one by one.
+     */
+    @Benchmark
+    public void rotatePages() {
+        for (Page page : pageList) {
+            page.rotate(90);
+        }
+    }
+
+    /**
+     * Rotate all the pages of the list at once.
+     */
+    @Benchmark
+    public void rotateList() {
+        model.rotate(indices, 90);
+    }
+}
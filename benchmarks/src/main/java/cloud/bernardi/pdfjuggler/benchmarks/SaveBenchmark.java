@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler.benchmarks;
+
+import cloud.bernardi.pdfjuggler.Page;
+import cloud.bernardi.pdfjuggler.PdfSaver;
+import cloud.bernardi.pdfjuggler.SourceRegistry;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Saving a session: either the pages of a file in a new order, which copies
+ * them into a new document, or the file with every page rotated, which is
+ * written as an incremental update of the source.
+ *
+ * @author rnd
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SaveBenchmark {
+
+    @Param({"TEXT", "IMAGE", "LIGHT"})
+    public SyntheticPdfs.Kind kind;
+
+    private SourceRegistry registry;
+    private PdfSaver saver;
+    private List<Page> reversed;
+    private List<Page> rotated;
+    private File output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File file = SyntheticPdfs.get(kind);
+        registry = new SourceRegistry(MemoryUsageSetting.setupTempFileOnly());
+        saver = new PdfSaver(registry, PdfSaver.DEFAULT_MEMORY_MB * 1024L * 1024L);
+        reversed = registry.readPages(file);
+        Collections.reverse(reversed);
+        rotated = new ArrayList<>();
+        for (Page page : registry.readPages(file)) {
+            page.rotate(90);
+            rotated.add(page);
+        }
+        output = File.createTempFile("pdfjuggler-benchmark", ".pdf");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        registry.closeAll();
+        output.delete();
+    }
+
+    /**
+     * Save the pages in reverse order.
+     *
+     * @throws IOException
+     */
+    @Benchmark
+    public void saveReordered() throws IOException {
+        saver.save(reversed, output, (count, total) -> {
+        });
+    }
+
+    /**
+     * Save the pages in their order, all rotated.
+     *
+     * @throws IOException
+     */
+    @Benchmark
+    public void saveRotated() throws IOException {
+        saver.save(rotated, output, (count, total) -> {
+        });
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler.benchmarks;
+
+import cloud.bernardi.pdfjuggler.MainFrame;
+import cloud.bernardi.pdfjuggler.ThumbnailCache;
+import cloud.bernardi.pdfjuggler.ThumbnailRenderer;
+import cloud.bernardi.pdfjuggler.ThumbnailStore;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building a thumbnail icon from a stored thumbnail, as the thumbnail cache
+ * does on a miss: decompressing it, rotating it and scaling it to the cell.
+ *
+ * @author rnd
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScaleBenchmark {
+
+    @Param({"TEXT", "IMAGE"})
+    public SyntheticPdfs.Kind kind;
+
+    @Param({"10", "24"})
+    public int dpi;
+
+    @Param({"0", "90"})
+    public int rotation;
+
+    private BufferedImage image;
+    private ThumbnailStore.Compressed compressed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ThumbnailRenderer renderer = new ThumbnailRenderer(1);
+        try {
+            renderer.render(SyntheticPdfs.get(kind), 0, 1, dpi, (page, rendered, embedded) -> image = rendered);
+        } finally {
+            renderer.shutdown();
+        }
+        compressed = ThumbnailStore.compress(image, dpi);
+    }
+
+    /**
+     * Rotate and scale a decompressed thumbnail.
+     *
+     * @return
+     */
+    @Benchmark
+    public BufferedImage scale() {
+        return ThumbnailCache.createThumbnail(image, rotation, MainFrame.DEFAULT_THUMB_WIDTH, MainFrame.DEFAULT_THUMB_HEIGHT);
+    }
+
+    /**
+     * Decompress a thumbnail from the store, then rotate and scale it.
+     *
+     * @return
+     */
+    @Benchmark
+    public BufferedImage decompressAndScale() {
+        return ThumbnailCache.createThumbnail(ThumbnailStore.decompress(compressed), rotation,
+                MainFrame.DEFAULT_THUMB_WIDTH, MainFrame.DEFAULT_THUMB_HEIGHT);
+    }
+}
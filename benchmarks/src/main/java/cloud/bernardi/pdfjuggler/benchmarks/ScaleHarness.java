@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler.benchmarks;
+
+import cloud.bernardi.pdfjuggler.PageListModel;
+import cloud.bernardi.pdfjuggler.PdfSaver;
+import cloud.bernardi.pdfjuggler.Session;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * Drives whole sessions on large generated documents without a display:
+ * load, rotate, save, reorder, remove, save again and close, checking every
+ * step against a wall-clock budget and the heap retained after it against a
+ * ceiling. The JVM heap limit is the hard ceiling: running out of it fails
+ * the run as well.
+ *
+ * The scenarios are a file with many pages, a file with many large images
+ * and many small files. Sizes and budgets are system properties, listed in
+ * the constants below with their defaults. The process exits with status 1
+ * if any scenario breaks a budget, so that the build fails.
+ *
+ * @author rnd
+ */
+public class ScaleHarness {
+
+    /**
+     * Pages of the long document.
+     */
+    private static final int LONG_PAGES = Integer.getInteger("scale.longPages", 5000);
+
+    /**
+     * Size of the image document, in megabytes; 0 skips it.
+     */
+    private static final int LARGE_MB = Integer.getInteger("scale.largeMB", 2048);
+
+    /**
+     * Number of small files, and pages of each one.
+     */
+    private static final int SMALL_FILES = Integer.getInteger("scale.smallFiles", 1000);
+    private static final int SMALL_PAGES = Integer.getInteger("scale.smallPages", 3);
+
+    /**
+     * Heap retained after any step, in megabytes.
+     */
+    private static final int RETAINED_MB = Integer.getInteger("scale.retainedMB", 256);
+
+    /**
+     * Heap that may stay retained once a session is closed, compared to
+     * before it started, in megabytes.
+     */
+    private static final int LEAK_MB = Integer.getInteger("scale.leakMB", 16);
+
+    /**
+     * Wall-clock budget of loading and saving, in milliseconds per page or
+     * per megabyte of input, whichever is larger, with a minimum.
+     */
+    private static final int IO_MILLIS_PER_PAGE = Integer.getInteger("scale.ioMillisPerPage", 1);
+    private static final int IO_MILLIS_PER_MB = Integer.getInteger("scale.ioMillisPerMB", 50);
+    private static final int IO_MIN_MILLIS = Integer.getInteger("scale.ioMinMillis", 2000);
+
+    /**
+     * Wall-clock budget of the edits, in microseconds per page, with a
+     * minimum; they touch no file, so they must stay far below loading.
+     */
+    private static final int EDIT_MICROS_PER_PAGE = Integer.getInteger("scale.editMicrosPerPage", 100);
+    private static final int EDIT_MIN_MILLIS = Integer.getInteger("scale.editMinMillis", 500);
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    private final List<String> failures = new ArrayList<>();
+
+    /**
+     * A session being driven, with the budgets of its steps.
+     */
+    private class Scenario {
+
+        private final String name;
+        private final List<File> files;
+        private final long ioBudget;
+        private final long editBudget;
+        private final Session session = new Session(new PageListModel(), 100, PdfSaver.DEFAULT_MEMORY_MB * 1024L * 1024L);
+
+        Scenario(String name, List<File> files, int pages) {
+            this.name = name;
+            this.files = files;
+            long bytes = 0;
+            for (File file : files) {
+                bytes += file.length();
+            }
+            ioBudget = Math.max(IO_MIN_MILLIS,
+                    Math.max((long) pages * IO_MILLIS_PER_PAGE, bytes / (1024 * 1024) * IO_MILLIS_PER_MB));
+            editBudget = Math.max(EDIT_MIN_MILLIS, (long) pages * EDIT_MICROS_PER_PAGE / 1000);
+        }
+
+        /**
+         * Run a step, then check its time and the heap it left behind.
+         */
+        void step(String step, long budget, Step action) throws IOException {
+            long start = System.nanoTime();
+            action.run();
+            long millis = (System.nanoTime() - start) / 1000000;
+            long retained = retainedHeap();
+            System.out.printf("%-8s %-12s %8d ms (budget %d) %6d MB retained%n",
+                    name, step, millis, budget, retained / (1024 * 1024));
+            if (millis > budget) {
+                failures.add(name + " " + step + " took " + millis + " ms, budget " + budget + " ms");
+            }
+            if (retained > RETAINED_MB * 1024L * 1024L) {
+                failures.add(name + " " + step + " retained " + retained / (1024 * 1024) + " MB, budget " + RETAINED_MB + " MB");
+            }
+        }
+
+        void run() throws IOException {
+            long baseline = retainedHeap();
+            File output = File.createTempFile("pdfjuggler-scale", ".pdf");
+            PageListModel model = session.getModel();
+            try {
+                step("load", ioBudget, () -> {
+                    for (File file : files) {
+                        session.addFile(file);
+                    }
+                });
+                int pages = model.getSize();
+                step("rotate", editBudget, () -> session.rotate(range(0, pages, 1), 90));
+                step("save", ioBudget, () -> session.save(output, (count, total) -> {
+                }));
+                checkPages(output, pages);
+                // A scattered selection, dropped at the start, then a block
+                // moved to the end
+                step("reorder", editBudget, () -> {
+                    session.move(range(1, pages, 2), 0);
+                    session.move(range(0, pages / 4, 1), pages);
+                });
+                step("remove", editBudget, () -> session.remove(range(0, pages, 3)));
+                int kept = model.getSize();
+                step("save", ioBudget, () -> session.save(output, (count, total) -> {
+                }));
+                checkPages(output, kept);
+                // Closing the session closes the source documents too
+                step("close", ioBudget, () -> {
+                    session.removeAll();
+                    session.discardHistory();
+                });
+                if (session.getRegistry().size() != 0) {
+                    failures.add(name + " left " + session.getRegistry().size() + " source files open");
+                }
+            } finally {
+                session.close();
+                output.delete();
+            }
+            long leaked = retainedHeap() - baseline;
+            if (leaked > LEAK_MB * 1024L * 1024L) {
+                failures.add(name + " leaked " + leaked / (1024 * 1024) + " MB, budget " + LEAK_MB + " MB");
+            }
+        }
+
+        private void checkPages(File file, int expected) throws IOException {
+            try (PDDocument document = PDDocument.load(file, MemoryUsageSetting.setupTempFileOnly())) {
+                if (document.getNumberOfPages() != expected) {
+                    failures.add(name + " saved " + document.getNumberOfPages() + " pages instead of " + expected);
+                }
+            }
+        }
+    }
+
+    /**
+     * A step of a scenario.
+     */
+    private interface Step {
+
+        void run() throws IOException;
+    }
+
+    /**
+     * Ascending positions from a start, with a stride.
+     */
+    private static int[] range(int from, int to, int stride) {
+        int[] indices = new int[Math.max(0, (to - from + stride - 1) / stride)];
+        for (int i = 0; i < indices.length; ++i) {
+            indices[i] = from + i * stride;
+        }
+        return indices;
+    }
+
+    /**
+     * Heap still in use after a full collection.
+     */
+    private static long retainedHeap() {
+        System.gc();
+        System.gc();
+        return MEMORY.getHeapMemoryUsage().getUsed();
+    }
+
+    private void run(String name, List<File> files, int pages) {
+        try {
+            new Scenario(name, files, pages).run();
+        } catch (IOException | RuntimeException | OutOfMemoryError ex) {
+            failures.add(name + " failed: " + ex);
+        }
+    }
+
+    /**
+     * @param args not used
+     * @throws IOException if the documents cannot be generated
+     */
+    public static void main(String[] args) throws IOException {
+        System.out.printf("Heap limit %d MB, synthetic documents in %s%n",
+                Runtime.getRuntime().maxMemory() / (1024 * 1024), SyntheticPdfs.DIRECTORY);
+        ScaleHarness harness = new ScaleHarness();
+        if (LONG_PAGES > 0) {
+            harness.run("long", Collections.singletonList(
+                    SyntheticPdfs.get(SyntheticPdfs.Kind.TEXT, LONG_PAGES)), LONG_PAGES);
+        }
+        if (LARGE_MB > 0) {
+            int pages = SyntheticPdfs.getImagePagesFor(LARGE_MB * 1024L * 1024L);
+            harness.run("large", Collections.singletonList(
+                    SyntheticPdfs.get(SyntheticPdfs.Kind.IMAGE, pages)), pages);
+        }
+        if (SMALL_FILES > 0) {
+            harness.run("small", SyntheticPdfs.getCopies(SyntheticPdfs.DIRECTORY,
+                    SyntheticPdfs.Kind.TEXT, SMALL_PAGES, SMALL_FILES), SMALL_FILES * SMALL_PAGES);
+        }
+        if (harness.failures.isEmpty()) {
+            System.out.println("All scenarios within budget");
+        } else {
+            for (String failure : harness.failures) {
+                System.out.println("FAILED: " + failure);
+            }
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler.benchmarks;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/**
+ * Generates the synthetic PDF files the benchmarks run on, so that the
+ * results do not depend on documents that cannot be shipped.
+ *
+ * The contents are pseudo-random with a fixed seed, so the same kind and
+ * size always give the same file.
+ *
+ * @author rnd
+ */
+public class SyntheticPdfs {
+
+    /**
+     * Kinds of generated documents.
+     */
+    public enum Kind {
+        /**
+         * A4 pages filled with lines of text, like a report.
+         */
+        TEXT(100),
+        /**
+         * A4 pages each covered by a large photo-like JPEG image, like a scan.
+         */
+        IMAGE(20),
+        /**
+         * A4 pages with a single line of text, cheap to render, for the
+         * paths whose cost depends on the number of pages.
+         */
+        LIGHT(10000);
+
+        private final int defaultPages;
+
+        Kind(int defaultPages) {
+            this.defaultPages = defaultPages;
+        }
+
+        /**
+         * Number of pages of the documents the benchmarks use.
+         *
+         * @return
+         */
+        public int getDefaultPages() {
+            return defaultPages;
+        }
+    }
+
+    /**
+     * Directory where the documents are generated, unless the
+     * pdfjuggler.synthetic.dir system property says otherwise; they are
+     * reused by the next runs.
+     */
+    public static final File DIRECTORY = new File(System.getProperty("pdfjuggler.synthetic.dir",
+            new File(System.getProperty("java.io.tmpdir"), "pdfjuggler-synthetic").getPath()));
+
+    private static final int LINES_PER_PAGE = 60;
+    private static final int WORDS_PER_LINE = 12;
+    private static final int IMAGE_WIDTH = 1240;
+    private static final int IMAGE_HEIGHT = 1754;
+    /**
+     * Number of distinct images the pages of an image document cycle
+     * through; encoding a new one for every page would make the generation
+     * of large files take far longer than reading them.
+     */
+    private static final int DISTINCT_IMAGES = 8;
+    private static final long SEED = 42;
+
+    private SyntheticPdfs() {
+    }
+
+    /**
+     * Get a generated document with the default number of pages of its kind.
+     *
+     * @param kind
+     * @return
+     * @throws IOException
+     */
+    public static File get(Kind kind) throws IOException {
+        return get(DIRECTORY, kind, kind.getDefaultPages());
+    }
+
+    /**
+     * Get a generated document from the default directory, creating it only
+     * if it is not there already.
+     *
+     * @param kind
+     * @param pages
+     * @return
+     * @throws IOException
+     */
+    public static File get(Kind kind, int pages) throws IOException {
+        return get(DIRECTORY, kind, pages);
+    }
+
+    /**
+     * Get a generated document, creating it in the specified directory only
+     * if it is not there already.
+     *
+     * @param directory
+     * @param kind
+     * @param pages
+     * @return
+     * @throws IOException
+     */
+    public static File get(File directory, Kind kind, int pages) throws IOException {
+        File file = new File(directory, kind.name().toLowerCase() + "-" + pages + ".pdf");
+        if (!file.isFile()) {
+            directory.mkdirs();
+            File partial = new File(directory, file.getName() + ".part");
+            generate(partial, kind, pages);
+            if (!partial.renameTo(file)) {
+                throw new IOException("Cannot rename " + partial + " to " + file);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Write a new document.
+     *
+     * @param file
+     * @param kind
+     * @param pages
+     * @throws IOException
+     */
+    public static void generate(File file, Kind kind, int pages) throws IOException {
+        Random random = new Random(SEED);
+        byte[][] jpegs = new byte[kind == Kind.IMAGE ? Math.min(pages, DISTINCT_IMAGES) : 0][];
+        for (int i = 0; i < jpegs.length; ++i) {
+            ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+            ImageIO.write(createImage(random), "jpg", jpeg);
+            jpegs[i] = jpeg.toByteArray();
+        }
+        // Scratch files keep the heap flat however many pages are generated
+        try (PDDocument document = new PDDocument(MemoryUsageSetting.setupTempFileOnly())) {
+            for (int i = 0; i < pages; ++i) {
+                PDPage page = new PDPage(PDRectangle.A4);
+                document.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    switch (kind) {
+                        case TEXT:
+                            writeText(content, random, i, LINES_PER_PAGE);
+                            break;
+                        case IMAGE:
+                            // A new image object for every page, as in a
+                            // scanned document, so the file size grows with
+                            // the pages
+                            PDImageXObject image = JPEGFactory.createFromByteArray(document, jpegs[i % jpegs.length]);
+                            content.drawImage(image, 0, 0, PDRectangle.A4.getWidth(), PDRectangle.A4.getHeight());
+                            break;
+                        default:
+                            writeText(content, random, i, 1);
+                            break;
+                    }
+                }
+            }
+            document.save(file);
+        }
+    }
+
+    /**
+     * Get many copies of the same generated document, as distinct files,
+     * creating the missing ones.
+     *
+     * @param directory
+     * @param kind
+     * @param pages
+     * @param count number of files
+     * @return
+     * @throws IOException
+     */
+    public static List<File> getCopies(File directory, Kind kind, int pages, int count) throws IOException {
+        File original = get(directory, kind, pages);
+        File copies = new File(directory, kind.name().toLowerCase() + "-" + pages + "-copies");
+        copies.mkdirs();
+        List<File> files = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            File file = new File(copies, String.format("%05d.pdf", i));
+            if (!file.isFile()) {
+                Files.copy(original.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Number of pages an image document needs to reach a size.
+     *
+     * @param bytes
+     * @return
+     * @throws IOException
+     */
+    public static int getImagePagesFor(long bytes) throws IOException {
+        File sample = get(DIRECTORY, Kind.IMAGE, DISTINCT_IMAGES);
+        return (int) Math.max(1, (bytes * DISTINCT_IMAGES + sample.length() - 1) / sample.length());
+    }
+
+    private static void writeText(PDPageContentStream content, Random random, int pageIndex, int lines) throws IOException {
+        content.beginText();
+        content.setFont(PDType1Font.HELVETICA, 10);
+        content.setLeading(12);
+        content.newLineAtOffset(50, PDRectangle.A4.getHeight() - 50);
+        content.showText("Page " + (pageIndex + 1));
+        for (int line = 1; line < lines; ++line) {
+            content.newLine();
+            StringBuilder text = new StringBuilder();
+            for (int word = 0; word < WORDS_PER_LINE; ++word) {
+                int length = 2 + random.nextInt(8);
+                for (int c = 0; c < length; ++c) {
+                    text.append((char) ('a' + random.nextInt(26)));
+                }
+                text.append(' ');
+            }
+            content.showText(text.toString());
+        }
+        content.endText();
+    }
+
+    /**
+     * A 150 DPI A4 image with gradients and noise, which does not compress
+     * much better than a photo.
+     */
+    private static BufferedImage createImage(Random random) {
+        BufferedImage image = new BufferedImage(IMAGE_WIDTH, IMAGE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = image.createGraphics();
+        g2d.setPaint(new GradientPaint(0, 0, new Color(random.nextInt(0xFFFFFF)),
+                IMAGE_WIDTH, IMAGE_HEIGHT, new Color(random.nextInt(0xFFFFFF))));
+        g2d.fillRect(0, 0, IMAGE_WIDTH, IMAGE_HEIGHT);
+        for (int i = 0; i < 200; ++i) {
+            g2d.setColor(new Color(random.nextInt(0xFFFFFF)));
+            g2d.fillOval(random.nextInt(IMAGE_WIDTH), random.nextInt(IMAGE_HEIGHT), 20 + random.nextInt(200), 20 + random.nextInt(200));
+        }
+        g2d.dispose();
+        int[] pixels = image.getRGB(0, 0, IMAGE_WIDTH, IMAGE_HEIGHT, null, 0, IMAGE_WIDTH);
+        for (int i = 0; i < pixels.length; ++i) {
+            pixels[i] ^= random.nextInt(0x10) * 0x010101;
+        }
+        image.setRGB(0, 0, IMAGE_WIDTH, IMAGE_HEIGHT, pixels, 0, IMAGE_WIDTH);
+        return image;
+    }
+}
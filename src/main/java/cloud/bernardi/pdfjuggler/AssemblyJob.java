@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assembly of an output PDF file from a page-assembly expression, without any
+ * user interface.
+ *
+ * @author rnd
+ */
+public class AssemblyJob {
+
+    private final File output;
+    private final PageExpression expression;
+
+    /**
+     * Create a new assembly job.
+     *
+     * @param output
+     * @param expression
+     */
+    public AssemblyJob(File output, PageExpression expression) {
+        this.output = output;
+        this.expression = expression;
+    }
+
+    /**
+     * The output file.
+     *
+     * @return
+     */
+    public File getOutput() {
+        return output;
+    }
+
+    /**
+     * The page-assembly expression.
+     *
+     * @return
+     */
+    public PageExpression getExpression() {
+        return expression;
+    }
+
+    /**
+     * Resolve the expression against the source files and save the output
+     * file, in the same way as the user interface does.
+     *
+     * @param registry where the source documents are taken from
+     * @param saver
+     * @param listener
+     * @return the number of pages saved
+     * @throws IOException
+     */
+    public int run(SourceRegistry registry, PdfSaver saver, PdfSaver.Listener listener) throws IOException {
+        Map<File, SourceRegistry.Handle> handles = new LinkedHashMap<>();
+        try {
+            List<Page> pages = new ArrayList<>();
+            for (PageExpression.Item item : expression.getItems()) {
+                SourceRegistry.Handle handle = handles.get(item.file);
+                if (handle == null) {
+                    handle = registry.acquire(item.file);
+                    handles.put(item.file, handle);
+                }
+                // The page tree of each source is read once for all the jobs
+                List<Page> sourcePages = registry.getPages(handle);
+                int last = item.last == 0 ? sourcePages.size() : item.last;
+                if (item.first > sourcePages.size() || last > sourcePages.size()) {
+                    throw new IOException(String.format("%s has only %d pages", item.file, sourcePages.size()));
+                }
+                for (int i = item.first - 1; i < last; ++i) {
+                    Page source = sourcePages.get(i);
+                    Page page = new Page(source.index, source.file, source.width, source.height, source.sourceRotation);
+                    page.rotate(item.rotation);
+                    pages.add(page);
+                }
+            }
+            saver.save(pages, output, listener);
+            return pages.size();
+        } finally {
+            for (SourceRegistry.Handle handle : handles.values()) {
+                handle.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Run many assembly jobs in the same JVM.
+ *
+ * The jobs run on a bounded pool and share one {@link SourceRegistry}: each
+ * source file is parsed when the first job needs it, and again only when
+ * more jobs use it at the same time, up to one parse per thread; it is kept
+ * open until the last job that refers to it has finished. The heap ceilings
+ * of the output documents running at the same time never exceed the memory
+ * budget of the batch.
+ *
+ * @author rnd
+ */
+public class BatchRunner {
+
+    /**
+     * Share of the maximum heap used as the default memory budget.
+     */
+    public static final double DEFAULT_HEAP_SHARE = 0.5;
+
+    /**
+     * Receives the outcome of the jobs.
+     */
+    public interface Listener {
+
+        /**
+         * Called after each page of a job is added to its output document.
+         *
+         * @param job
+         * @param count number of pages added so far
+         * @param total number of pages to add
+         */
+        void pageAdded(AssemblyJob job, int count, int total);
+
+        /**
+         * Called when a job has finished, successfully or not.
+         *
+         * @param result
+         */
+        void jobFinished(Result result);
+    }
+
+    /**
+     * Outcome of a job.
+     */
+    public static class Result {
+
+        /**
+         * The job.
+         */
+        public final AssemblyJob job;
+
+        /**
+         * Pages saved, zero if the job failed.
+         */
+        public final int pages;
+
+        /**
+         * Time taken by the job, in nanoseconds, excluding the time spent
+         * waiting for memory.
+         */
+        public final long nanos;
+
+        /**
+         * Why the job failed, or null.
+         */
+        public final Exception error;
+
+        Result(AssemblyJob job, int pages, long nanos, Exception error) {
+            this.job = job;
+            this.pages = pages;
+            this.nanos = nanos;
+            this.error = error;
+        }
+    }
+
+    private final SourceRegistry registry;
+    private final PdfSaver saver;
+    private final int threads;
+    private final int jobMemoryMB;
+    private final Semaphore memory;
+    private final int memoryBudgetMB;
+    private final Map<File, Integer> pending = new HashMap<>();
+
+    /**
+     * Create a new runner.
+     *
+     * @param registry where the source documents are taken from
+     * @param threads maximum number of jobs running at the same time
+     * @param jobMemoryMB heap ceiling of each output document, in megabytes
+     * @param memoryBudgetMB heap ceiling of all the output documents being
+     * written at the same time, in megabytes
+     */
+    public BatchRunner(SourceRegistry registry, int threads, int jobMemoryMB, int memoryBudgetMB) {
+        this.registry = registry;
+        this.saver = new PdfSaver(registry, jobMemoryMB * 1024L * 1024L);
+        this.threads = threads;
+        this.jobMemoryMB = Math.min(jobMemoryMB, memoryBudgetMB);
+        this.memoryBudgetMB = memoryBudgetMB;
+        this.memory = new Semaphore(memoryBudgetMB, true);
+    }
+
+    /**
+     * Default memory budget for the output documents, in megabytes.
+     *
+     * @return
+     */
+    public static int getDefaultMemoryBudgetMB() {
+        return (int) Math.max(1, Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_SHARE / (1024 * 1024));
+    }
+
+    /**
+     * Read a manifest file: each line is {@code OUTPUT = PAGES}, where PAGES
+     * is a {@link PageExpression}; blank lines and lines starting with
+     * {@code #} are ignored. Relative file names are resolved against the
+     * directory of the manifest.
+     *
+     * @param manifest
+     * @return
+     * @throws IOException
+     * @throws IllegalArgumentException if a line is malformed
+     */
+    public static List<AssemblyJob> readManifest(File manifest) throws IOException {
+        File directory = manifest.getAbsoluteFile().getParentFile();
+        List<AssemblyJob> jobs = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                ++number;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int separator = line.indexOf('=');
+                if (separator <= 0 || separator == line.length() - 1) {
+                    throw new IllegalArgumentException(String.format("%s:%d: expected OUTPUT = PAGES", manifest, number));
+                }
+                File output = new File(line.substring(0, separator).trim());
+                if (!output.isAbsolute()) {
+                    output = new File(directory, output.getPath());
+                }
+                try {
+                    PageExpression expression = PageExpression.parse(line.substring(separator + 1).trim());
+                    jobs.add(new AssemblyJob(output, expression.resolve(directory)));
+                } catch (IllegalArgumentException ex) {
+                    throw new IllegalArgumentException(String.format("%s:%d: %s", manifest, number, ex.getMessage()));
+                }
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Run all the jobs and wait for them. A failed job does not stop the
+     * others. A runner runs a single batch.
+     *
+     * @param jobs
+     * @param listener
+     * @return the results, in the same order as the jobs
+     * @throws InterruptedException
+     */
+    public List<Result> run(List<AssemblyJob> jobs, Listener listener) throws InterruptedException {
+        synchronized (pending) {
+            for (AssemblyJob job : jobs) {
+                for (File file : job.getExpression().getFiles()) {
+                    pending.merge(file.getAbsoluteFile(), 1, Integer::sum);
+                }
+            }
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, jobs.size())));
+        // Jobs sharing a source write their outputs at the same time
+        registry.allowParses(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<>(jobs.size());
+            for (AssemblyJob job : jobs) {
+                futures.add(executor.submit(() -> runJob(job, listener)));
+            }
+            List<Result> results = new ArrayList<>(jobs.size());
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException ex) {
+                    throw new IllegalStateException(ex.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+            registry.disallowParses(threads);
+        }
+    }
+
+    private Result runJob(AssemblyJob job, Listener listener) throws InterruptedException {
+        memory.acquire(jobMemoryMB);
+        long start = System.nanoTime();
+        Result result;
+        try {
+            for (File file : job.getExpression().getFiles()) {
+                pin(file.getAbsoluteFile());
+            }
+            int pages = job.run(registry, saver, (count, total) -> listener.pageAdded(job, count, total));
+            result = new Result(job, pages, System.nanoTime() - start, null);
+        } catch (IOException | RuntimeException ex) {
+            result = new Result(job, 0, System.nanoTime() - start, ex);
+        } finally {
+            memory.release(jobMemoryMB);
+            for (File file : job.getExpression().getFiles()) {
+                unpin(file.getAbsoluteFile());
+            }
+        }
+        listener.jobFinished(result);
+        return result;
+    }
+
+    /**
+     * Keep a source file open on behalf of all the jobs that still need it,
+     * the first time one of them starts.
+     */
+    private void pin(File file) throws IOException {
+        if (isPinned(file)) {
+            return;
+        }
+        // The file is parsed outside the lock, so that jobs starting on other
+        // files do not wait for it; the registry parses it only once even if
+        // several jobs get here at the same time
+        try (SourceRegistry.Handle handle = registry.acquire(file)) {
+            synchronized (pending) {
+                if (isPinned(file)) {
+                    return;
+                }
+                int jobs = pending.get(file);
+                registry.retain(handle, jobs);
+                // Negative counts mark the files kept open for the batch
+                pending.put(file, -jobs);
+            }
+        }
+    }
+
+    /**
+     * Whether a source file is already kept open for the batch, or no job
+     * needs it anymore.
+     */
+    private boolean isPinned(File file) {
+        synchronized (pending) {
+            Integer jobs = pending.get(file);
+            return jobs == null || jobs < 0;
+        }
+    }
+
+    /**
+     * Release the reference held on behalf of a finished job.
+     */
+    private void unpin(File file) {
+        synchronized (pending) {
+            Integer jobs = pending.get(file);
+            if (jobs == null) {
+                return;
+            }
+            if (jobs > 0) {
+                // The file could not be opened: nothing to release
+                if (jobs == 1) {
+                    pending.remove(file);
+                } else {
+                    pending.put(file, jobs - 1);
+                }
+                return;
+            }
+            if (jobs == -1) {
+                pending.remove(file);
+            } else {
+                pending.put(file, jobs + 1);
+            }
+        }
+        registry.release(file, 1);
+    }
+
+    /**
+     * Memory budget of the output documents, in megabytes.
+     *
+     * @return
+     */
+    public int getMemoryBudgetMB() {
+        return memoryBudgetMB;
+    }
+}
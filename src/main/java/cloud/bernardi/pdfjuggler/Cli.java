@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+
+/**
+ * Headless command line interface, to merge, split and rotate PDF files in
+ * batch jobs. It never touches the Swing user interface nor the persistent
+ * configuration.
+ *
+ * @author rnd
+ */
+public class Cli {
+
+    /**
+     * Exit status for a successful run.
+     */
+    public static final int EXIT_OK = 0;
+
+    /**
+     * Exit status when some output file could not be written.
+     */
+    public static final int EXIT_FAILURE = 1;
+
+    /**
+     * Exit status for invalid command line arguments.
+     */
+    public static final int EXIT_USAGE = 2;
+
+    private static final String USAGE
+            = "Usage: pdfjuggler [OPTIONS] -o OUTPUT PAGES [-o OUTPUT PAGES]...\n"
+            + "       pdfjuggler [OPTIONS] --manifest FILE\n"
+            + "\n"
+            + "PAGES is a comma-separated list of FILE[:RANGE][@ROTATION] items, e.g.\n"
+            + "a.pdf:1-10,b.pdf:5@90,a.pdf:11- where RANGE is N, N-M, N- or -M.\n"
+            + "Each line of a manifest is OUTPUT = PAGES; relative names are resolved\n"
+            + "against the directory of the manifest and # starts a comment line.\n"
+            + "\n"
+            + "Options:\n"
+            + "  -j, --jobs N          output files written concurrently (default: CPUs)\n"
+            + "  -m, --memory MB       heap ceiling of each output file (default: "
+            + PdfSaver.DEFAULT_MEMORY_MB + ")\n"
+            + "  -b, --budget MB       heap ceiling of all the output files being written\n"
+            + "                        (default: half of the maximum heap)\n"
+            + "  -f, --manifest FILE   read the output files from a manifest\n"
+            + "  -r, --report FILE     write the outcome of each output file as CSV\n"
+            + "  -q, --quiet           do not print the progress\n"
+            + "  -h, --help            print this help\n";
+
+    /**
+     * Number of progress lines printed for each output file.
+     */
+    private static final int PROGRESS_STEPS = 10;
+
+    private final PrintStream out;
+    private final PrintStream err;
+    private final List<AssemblyJob> jobs = new ArrayList<>();
+    private final List<File> manifests = new ArrayList<>();
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int memory = PdfSaver.DEFAULT_MEMORY_MB;
+    private int budget = BatchRunner.getDefaultMemoryBudgetMB();
+    private File report;
+    private boolean quiet;
+
+    /**
+     * Create a new command line interface.
+     *
+     * @param out where the progress is printed
+     * @param err where the errors are printed
+     */
+    public Cli(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Run the command line interface.
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        System.exit(new Cli(System.out, System.err).run(args));
+    }
+
+    /**
+     * Parse the arguments and write all the output files.
+     *
+     * @param args
+     * @return the exit status
+     */
+    public int run(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        try {
+            if (!parseArguments(args)) {
+                out.print(USAGE);
+                return EXIT_OK;
+            }
+        } catch (IllegalArgumentException ex) {
+            err.println(ex.getMessage());
+            err.print(USAGE);
+            return EXIT_USAGE;
+        }
+        // The jobs given on the command line print their page progress,
+        // the ones from manifests are usually too many for that
+        Set<AssemblyJob> verbose = new HashSet<>(jobs);
+        try {
+            for (File manifest : manifests) {
+                jobs.addAll(BatchRunner.readManifest(manifest));
+            }
+        } catch (IOException ex) {
+            err.println(ex);
+            return EXIT_FAILURE;
+        } catch (IllegalArgumentException ex) {
+            err.println(ex.getMessage());
+            return EXIT_USAGE;
+        }
+        SourceRegistry registry = new SourceRegistry(MemoryUsageSetting.setupTempFileOnly());
+        BatchRunner runner = new BatchRunner(registry, threads, memory, budget);
+        long start = System.nanoTime();
+        try {
+            List<BatchRunner.Result> results = runner.run(jobs, new BatchRunner.Listener() {
+                @Override
+                public void pageAdded(AssemblyJob job, int count, int total) {
+                    if (!quiet && verbose.contains(job)
+                            && (count == total || count % Math.max(1, total / PROGRESS_STEPS) == 0)) {
+                        out.println(String.format("%s: %d/%d pages", job.getOutput().getPath(), count, total));
+                    }
+                }
+
+                @Override
+                public void jobFinished(BatchRunner.Result result) {
+                    String name = result.job.getOutput().getPath();
+                    if (result.error != null) {
+                        err.println(String.format("%s: %s", name, result.error.getMessage()));
+                    } else if (!quiet) {
+                        out.println(String.format("%s: saved %d pages in %d ms", name, result.pages, result.nanos / 1000000));
+                    }
+                }
+            });
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            int failed = 0;
+            for (BatchRunner.Result result : results) {
+                if (result.error != null) {
+                    ++failed;
+                }
+            }
+            if (report != null) {
+                writeReport(results);
+            }
+            if (!quiet || failed > 0) {
+                out.println(String.format("%d files written, %d failed in %d ms", results.size() - failed, failed, elapsed));
+            }
+            return failed == 0 ? EXIT_OK : EXIT_FAILURE;
+        } catch (InterruptedException | IOException ex) {
+            err.println(ex);
+            return EXIT_FAILURE;
+        } finally {
+            registry.closeAll();
+        }
+    }
+
+    /**
+     * Parse the command line.
+     *
+     * @return false if the help was requested
+     */
+    private boolean parseArguments(String[] args) {
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "-h":
+                case "--help":
+                    return false;
+                case "-q":
+                case "--quiet":
+                    quiet = true;
+                    break;
+                case "-j":
+                case "--jobs":
+                    threads = parsePositive(args, ++i);
+                    break;
+                case "-m":
+                case "--memory":
+                    memory = parsePositive(args, ++i);
+                    break;
+                case "-b":
+                case "--budget":
+                    budget = parsePositive(args, ++i);
+                    break;
+                case "-f":
+                case "--manifest":
+                    manifests.add(new File(parseValue(args, ++i)));
+                    break;
+                case "-r":
+                case "--report":
+                    report = new File(parseValue(args, ++i));
+                    break;
+                case "-o":
+                case "--output":
+                    if (i + 2 >= args.length) {
+                        throw new IllegalArgumentException("Missing output file or pages");
+                    }
+                    File output = new File(args[++i]);
+                    jobs.add(new AssemblyJob(output, PageExpression.parse(args[++i])));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+        if (jobs.isEmpty() && manifests.isEmpty()) {
+            throw new IllegalArgumentException("No output file");
+        }
+        return true;
+    }
+
+    private static String parseValue(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    private static int parsePositive(String[] args, int i) {
+        String value = parseValue(args, i);
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException ex) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid value for " + args[i - 1] + ": " + value);
+    }
+
+    /**
+     * Write the outcome of each job as CSV: output file, status, pages,
+     * milliseconds and error message.
+     */
+    private void writeReport(List<BatchRunner.Result> results) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(report.toPath(), StandardCharsets.UTF_8))) {
+            writer.println("output,status,pages,ms,error");
+            for (BatchRunner.Result result : results) {
+                writer.println(String.join(",",
+                        csv(result.job.getOutput().getPath()),
+                        result.error == null ? "ok" : "failed",
+                        Integer.toString(result.pages),
+                        Long.toString(result.nanos / 1000000),
+                        result.error == null ? "" : csv(String.valueOf(result.error.getMessage()))));
+            }
+        }
+    }
+
+    private static String csv(String value) {
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+}
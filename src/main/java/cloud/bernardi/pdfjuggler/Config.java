@@ -36,6 +36,12 @@ public class Config {
 
     private int thumbWidth = MainFrame.DEFAULT_THUMB_WIDTH;
     private int thumbHeight = MainFrame.DEFAULT_THUMB_HEIGHT;
+    private int renderThreads = Runtime.getRuntime().availableProcessors();
+    private int thumbnailStoreSize = DiskThumbnailCache.DEFAULT_SIZE_MB;
+    private int thumbnailMemory = ThumbnailStore.DEFAULT_BUDGET_MB;
+    private int saveMemory = PdfSaver.DEFAULT_MEMORY_MB;
+    private int undoLevels = MainFrame.DEFAULT_UNDO_LEVELS;
+    private boolean showMetrics;
     private Rectangle bounds;
     private File lastOpenDir;
 
@@ -84,6 +90,30 @@ public class Config {
                 window.thumbWidth = Integer.parseInt(thumbWidthStr);
                 window.thumbHeight = Integer.parseInt(thumbHeightStr);
             }
+            String renderThreadsStr = prop.getProperty("renderThreads");
+            if (renderThreadsStr != null) {
+                window.renderThreads = Integer.parseInt(renderThreadsStr);
+            }
+            String thumbnailStoreSizeStr = prop.getProperty("thumbnailStoreSize");
+            if (thumbnailStoreSizeStr != null) {
+                window.thumbnailStoreSize = Integer.parseInt(thumbnailStoreSizeStr);
+            }
+            String thumbnailMemoryStr = prop.getProperty("thumbnailMemory");
+            if (thumbnailMemoryStr != null) {
+                window.thumbnailMemory = Integer.parseInt(thumbnailMemoryStr);
+            }
+            String saveMemoryStr = prop.getProperty("saveMemory");
+            if (saveMemoryStr != null) {
+                window.saveMemory = Integer.parseInt(saveMemoryStr);
+            }
+            String undoLevelsStr = prop.getProperty("undoLevels");
+            if (undoLevelsStr != null) {
+                window.undoLevels = Integer.parseInt(undoLevelsStr);
+            }
+            String showMetricsStr = prop.getProperty("showMetrics");
+            if (showMetricsStr != null) {
+                window.showMetrics = Boolean.parseBoolean(showMetricsStr);
+            }
         } catch (IOException ex) {
             Logger.getLogger(Config.class.getName()).log(Level.WARNING, null, ex);
         }
@@ -101,6 +131,12 @@ public class Config {
         lastOpenDir = window.lastOpenDir;
         thumbWidth = window.thumbWidth;
         thumbHeight = window.thumbHeight;
+        renderThreads = window.renderThreads;
+        thumbnailStoreSize = window.thumbnailStoreSize;
+        thumbnailMemory = window.thumbnailMemory;
+        saveMemory = window.saveMemory;
+        undoLevels = window.undoLevels;
+        showMetrics = window.showMetrics;
     }
 
     /**
@@ -122,6 +158,12 @@ public class Config {
         }
         prop.setProperty("thumbWidth", "" + thumbWidth);
         prop.setProperty("thumbHeight", "" + thumbHeight);
+        prop.setProperty("renderThreads", "" + renderThreads);
+        prop.setProperty("thumbnailStoreSize", "" + thumbnailStoreSize);
+        prop.setProperty("thumbnailMemory", "" + thumbnailMemory);
+        prop.setProperty("saveMemory", "" + saveMemory);
+        prop.setProperty("undoLevels", "" + undoLevels);
+        prop.setProperty("showMetrics", "" + showMetrics);
         try (OutputStream output = new FileOutputStream(getFile())) {
             prop.store(output, null);
         } catch (IOException ex) {
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+
+/**
+ * Persistent thumbnail store, shared by all the sessions of the application.
+ *
+ * Every thumbnail is a PNG file whose name is derived from the identity of the
+ * source PDF file (path, size, modification time and a hash of its content),
+ * the page index and the render DPI. When the store grows beyond its size
+ * limit, the least recently used thumbnails are deleted.
+ *
+ * @author rnd
+ */
+public class DiskThumbnailCache {
+
+    /**
+     * Default size limit of the store, in megabytes.
+     */
+    public static final int DEFAULT_SIZE_MB = 256;
+
+    /**
+     * Number of bytes hashed at the beginning and at the end of each source
+     * file: hashing the whole content of multi-gigabyte scans would cost more
+     * than rendering their thumbnails.
+     */
+    private static final int HASHED_BYTES = 1024 * 1024;
+
+    /**
+     * When the size limit is exceeded, the store is trimmed to this fraction
+     * of the limit, so that the eviction does not run on every write.
+     */
+    private static final double TRIM_RATIO = 0.9;
+
+    private final File directory;
+    private final long maxBytes;
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final Map<File, Identity> identities = new ConcurrentHashMap<>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "thumbnail-store");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Identity of a source file, recomputed when its size or modification
+     * time change.
+     */
+    private static class Identity {
+
+        private final long size;
+        private final long lastModified;
+        private final String key;
+
+        Identity(long size, long lastModified, String key) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Create a thumbnail store in the default directory, in the user home.
+     *
+     * @param maxMegabytes size limit of the store
+     * @return
+     */
+    public static DiskThumbnailCache createDefault(int maxMegabytes) {
+        String home = System.getProperty("user.home");
+        return new DiskThumbnailCache(new File(home, ".pdfjuggler-thumbnails"), maxMegabytes * 1024L * 1024L);
+    }
+
+    /**
+     * Create a thumbnail store.
+     *
+     * @param directory where the thumbnails are stored
+     * @param maxBytes size limit of the store
+     */
+    public DiskThumbnailCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        writer.execute(() -> {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                Logger.getLogger(DiskThumbnailCache.class.getName()).log(Level.WARNING, "Cannot create {0}", directory);
+                return;
+            }
+            long total = 0;
+            for (File entry : listEntries()) {
+                total += entry.length();
+            }
+            totalBytes.addAndGet(total);
+        });
+    }
+
+    /**
+     * Read a stored thumbnail.
+     *
+     * @param pdfFile source PDF file
+     * @param page zero-based page index
+     * @param dpi render DPI
+     * @return the thumbnail, or null if it is not stored
+     */
+    public BufferedImage get(File pdfFile, int page, int dpi) {
+        try {
+            File entry = getEntry(pdfFile, page, dpi);
+            if (!entry.isFile()) {
+                misses.incrementAndGet();
+                return null;
+            }
+            BufferedImage image = ImageIO.read(entry);
+            if (image != null) {
+                // The modification time keeps track of the last use
+                entry.setLastModified(System.currentTimeMillis());
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+            }
+            return image;
+        } catch (IOException ex) {
+            Logger.getLogger(DiskThumbnailCache.class.getName()).log(Level.WARNING, null, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Store a thumbnail; the file is written asynchronously.
+     *
+     * @param pdfFile source PDF file
+     * @param page zero-based page index
+     * @param dpi render DPI
+     * @param image
+     */
+    public void put(File pdfFile, int page, int dpi, BufferedImage image) {
+        writer.execute(() -> {
+            try {
+                File entry = getEntry(pdfFile, page, dpi);
+                File tmp = new File(directory, entry.getName() + ".tmp");
+                // Zero if there is no entry to replace
+                long replaced = entry.length();
+                if (!ImageIO.write(image, "png", tmp) || !tmp.renameTo(entry)) {
+                    tmp.delete();
+                    return;
+                }
+                if (totalBytes.addAndGet(entry.length() - replaced) > maxBytes) {
+                    trim();
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(DiskThumbnailCache.class.getName()).log(Level.WARNING, null, ex);
+            }
+        });
+    }
+
+    /**
+     * Number of lookups that found the thumbnail.
+     *
+     * @return
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of lookups that did not find the thumbnail.
+     *
+     * @return
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Stop accepting new thumbnails; the pending writes are completed while
+     * the application is still running.
+     */
+    public void shutdown() {
+        writer.shutdown();
+    }
+
+    /**
+     * Delete the least recently used thumbnails until the store is within its
+     * size limit.
+     */
+    private void trim() {
+        File[] entries = listEntries();
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        long target = (long) (maxBytes * TRIM_RATIO);
+        for (File entry : entries) {
+            if (totalBytes.get() <= target) {
+                break;
+            }
+            long length = entry.length();
+            if (entry.delete()) {
+                totalBytes.addAndGet(-length);
+            }
+        }
+    }
+
+    private File[] listEntries() {
+        File[] entries = directory.listFiles((dir, name) -> name.endsWith(".png"));
+        return entries != null ? entries : new File[0];
+    }
+
+    private File getEntry(File pdfFile, int page, int dpi) throws IOException {
+        return new File(directory, getIdentity(pdfFile) + "-" + page + "-" + dpi + ".png");
+    }
+
+    /**
+     * Identity of a source file, computed from its path, size, modification
+     * time and the hash of its first and last bytes.
+     */
+    private String getIdentity(File pdfFile) throws IOException {
+        long size = pdfFile.length();
+        long lastModified = pdfFile.lastModified();
+        Identity identity = identities.get(pdfFile);
+        if (identity == null || identity.size != size || identity.lastModified != lastModified) {
+            identity = new Identity(size, lastModified, hash(pdfFile, size, lastModified));
+            identities.put(pdfFile, identity);
+        }
+        return identity.key;
+    }
+
+    private static String hash(File pdfFile, long size, long lastModified) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        digest.update((pdfFile.getAbsolutePath() + "|" + size + "|" + lastModified).getBytes(StandardCharsets.UTF_8));
+        try (RandomAccessFile raf = new RandomAccessFile(pdfFile, "r")) {
+            byte[] buffer = new byte[(int) Math.min(HASHED_BYTES, size)];
+            raf.readFully(buffer);
+            digest.update(buffer);
+            if (size > HASHED_BYTES) {
+                buffer = new byte[(int) Math.min(HASHED_BYTES, size - HASHED_BYTES)];
+                raf.seek(size - buffer.length);
+                raf.readFully(buffer);
+                digest.update(buffer);
+            }
+        }
+        StringBuilder key = new StringBuilder();
+        byte[] bytes = digest.digest();
+        for (int i = 0; i < 16; ++i) {
+            key.append(String.format("%02x", bytes[i]));
+        }
+        return key.toString();
+    }
+}
@@ -22,9 +22,7 @@ import java.awt.datatransfer.Transferable;
 import java.awt.datatransfer.UnsupportedFlavorException;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
-import javax.swing.DefaultListModel;
 import javax.swing.JComponent;
 import javax.swing.JList;
 import javax.swing.ListSelectionModel;
@@ -42,8 +40,8 @@ import static javax.swing.TransferHandler.MOVE;
  */
 public class DndTransferHandler extends TransferHandler {
 
-    private final JList<String> dndList;
-    private final DefaultListModel<String> strings;
+    private final JList<Page> dndList;
+    private final PageListModel pages;
     private final MainFrame mainFrame;
     private final ListSelectionModel selection;
 
@@ -51,15 +49,12 @@ public class DndTransferHandler extends TransferHandler {
      * Create a new drag&drop transfer handler.
      *
      * @param dndList
-     * @param strings
+     * @param pages
      * @param mainFrame
      */
-    public DndTransferHandler(JList<String> dndList, DefaultListModel<String> strings, MainFrame mainFrame) {
-        if (dndList.getSelectionMode() == ListSelectionModel.MULTIPLE_INTERVAL_SELECTION) {
-            throw new IllegalArgumentException("Multiple interval selection is not supported, please use single or single interval selection.");
-        }
+    public DndTransferHandler(JList<Page> dndList, PageListModel pages, MainFrame mainFrame) {
         this.dndList = dndList;
-        this.strings = strings;
+        this.pages = pages;
         this.mainFrame = mainFrame;
         selection = dndList.getSelectionModel();
     }
@@ -71,8 +66,7 @@ public class DndTransferHandler extends TransferHandler {
 
     @Override
     public Transferable createTransferable(JComponent comp) {
-        selection.getSelectedIndices();
-        return new StringSelection(dndList.getSelectedValue());
+        return new StringSelection(String.valueOf(dndList.getSelectedIndex()));
     }
 
     @Override
@@ -87,23 +81,13 @@ public class DndTransferHandler extends TransferHandler {
             support.getTransferable().getTransferData(DataFlavor.stringFlavor);  // raise an exception if the flavor is not supported
             JList.DropLocation dl = (JList.DropLocation) support.getDropLocation();
             int[] selectedIndeces = selection.getSelectedIndices();
-            int selectedIndecesLength = selectedIndeces.length;
-            int dropLocationIndex = dl.getIndex();
-            if (dropLocationIndex >= selectedIndeces[0] && dropLocationIndex <= selectedIndeces[selectedIndeces.length - 1]) {
+            if (selectedIndeces.length == 0) {
                 return false;
             }
-            List<String> selectedValues = new ArrayList<>(selectedIndeces.length);
-            for (int i : selectedIndeces) {
-                selectedValues.add(strings.get(i));
-            }
-            strings.removeRange(selectedIndeces[0], selectedIndeces[selectedIndecesLength - 1]);
-            if (dropLocationIndex > selectedIndeces[0]) {
-                strings.addAll(dropLocationIndex - selectedIndecesLength, selectedValues);
-                selection.setSelectionInterval(dropLocationIndex - selectedIndecesLength, dropLocationIndex - 1);
-            } else {
-                strings.addAll(dropLocationIndex, selectedValues);
-                selection.setSelectionInterval(dropLocationIndex, dropLocationIndex + selectedIndecesLength - 1);
-            }
+            // The selected pages, even if scattered, are gathered at the drop
+            // location in their current order
+            int first = pages.move(selectedIndeces, dl.getIndex());
+            selection.setSelectionInterval(first, first + selectedIndeces.length - 1);
             return true;
         } catch (UnsupportedFlavorException ex0) {
             try {
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.JProgressBar;
+import javax.swing.Timer;
+
+/**
+ * Collects the pages and the progress produced by background loaders and
+ * applies them to the page list at a fixed pace, so that the event dispatch
+ * thread sees one list event for each chunk of pages instead of one for
+ * each page or file. Pages whose loading was cancelled before they reached
+ * the list are discarded instead.
+ *
+ * @author rnd
+ */
+public class ListUpdateBatcher {
+
+    /**
+     * Default interval between two flushes, in milliseconds.
+     */
+    public static final int DEFAULT_INTERVAL = 50;
+
+    private static final int NO_PROGRESS = -1;
+
+    private final PageListModel model;
+    private final JProgressBar progressBar;
+    private final Timer timer;
+    // Pages to add and actions to run, in order
+    private final Queue<Object> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger progress = new AtomicInteger(NO_PROGRESS);
+
+    /**
+     * Pages queued by a loading task.
+     */
+    private static class QueuedPages {
+
+        private final List<Page> pages;
+        private final TaskScheduler.Token token;
+
+        QueuedPages(List<Page> pages, TaskScheduler.Token token) {
+            this.pages = pages;
+            this.token = token;
+        }
+    }
+
+    /**
+     * Create a new batcher.
+     *
+     * @param model the page list
+     * @param progressBar where the progress is shown
+     * @param interval interval between two flushes, in milliseconds
+     */
+    public ListUpdateBatcher(PageListModel model, JProgressBar progressBar, int interval) {
+        this.model = model;
+        this.progressBar = progressBar;
+        timer = new Timer(interval, evt -> flush());
+        timer.setRepeats(false);
+    }
+
+    /**
+     * Queue pages to be added at the end of the list; if the token is
+     * cancelled before they are added, they are discarded. It can be called
+     * from any thread.
+     *
+     * @param pages
+     * @param token the loading task the pages come from
+     */
+    public void addPages(List<Page> pages, TaskScheduler.Token token) {
+        pending.add(new QueuedPages(pages, token));
+        schedule();
+    }
+
+    /**
+     * Queue an action to run on the event dispatch thread after the pages
+     * queued so far have been added. It can be called from any thread.
+     *
+     * @param action
+     */
+    public void run(Runnable action) {
+        pending.add(action);
+        schedule();
+    }
+
+    /**
+     * Set the progress bar value at the next flush; only the latest value is
+     * shown. It can be called from any thread.
+     *
+     * @param value
+     */
+    public void setProgress(int value) {
+        progress.set(value);
+        schedule();
+    }
+
+    private void schedule() {
+        if (!timer.isRunning()) {
+            timer.start();
+        }
+    }
+
+    /**
+     * Apply everything that was queued so far.
+     */
+    private void flush() {
+        List<Page> chunk = new ArrayList<>();
+        List<Page> cancelled = new ArrayList<>();
+        Object item;
+        while ((item = pending.poll()) != null) {
+            if (item instanceof Runnable) {
+                model.add(chunk);
+                chunk = new ArrayList<>();
+                ((Runnable) item).run();
+            } else {
+                // Tokens are cancelled on this thread too, so the check is
+                // final
+                QueuedPages queued = (QueuedPages) item;
+                (queued.token.isCancelled() ? cancelled : chunk).addAll(queued.pages);
+            }
+        }
+        model.add(chunk);
+        model.discard(cancelled);
+        int value = progress.getAndSet(NO_PROGRESS);
+        if (value != NO_PROGRESS) {
+            progressBar.setValue(value);
+        }
+        // Items queued after the queue was drained but before the timer
+        // stopped would wait for the next one
+        if (!pending.isEmpty() || progress.get() != NO_PROGRESS) {
+            timer.restart();
+        }
+    }
+
+    /**
+     * Drop everything that was queued and stop flushing.
+     */
+    public void stop() {
+        timer.stop();
+        pending.clear();
+    }
+}
@@ -19,33 +19,36 @@ package cloud.bernardi.pdfjuggler;
 import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Image;
 import java.awt.Rectangle;
-import java.awt.geom.AffineTransform;
-import java.awt.image.AffineTransformOp;
+import java.awt.Toolkit;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.imageio.ImageIO;
-import javax.swing.DefaultListCellRenderer;
-import javax.swing.DefaultListModel;
-import javax.swing.ImageIcon;
+import javax.swing.Icon;
+import javax.swing.JComponent;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
-import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.JOptionPane;
+import javax.swing.JViewport;
+import javax.swing.ListCellRenderer;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
-import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.pdmodel.PDPage;
-import org.apache.pdfbox.pdmodel.PDPageTree;
-import org.apache.pdfbox.rendering.ImageType;
-import org.apache.pdfbox.rendering.PDFRenderer;
+import javax.swing.undo.UndoManager;
 
 /**
  *
@@ -67,94 +70,155 @@ public class MainFrame extends JFrame {
     private static final int MIN_THUMB_HEIGHT = DEFAULT_THUMB_HEIGHT - 50;
     private static final int MAX_THUMB_WIDTH = DEFAULT_THUMB_WIDTH + 50;
     private static final int MAX_THUMB_HEIGHT = DEFAULT_THUMB_HEIGHT + 50;
-    private static final int DEFAULT_THUMB_DPI = 10;
+    /**
+     * Resolution of the first, cheap rendering of a thumbnail, and of the
+     * pages whose size is unknown.
+     */
+    private static final int PREVIEW_DPI = 10;
+    /**
+     * Render resolutions are rounded up to a multiple of this step, so that
+     * nearby zoom levels share their thumbnails.
+     */
+    private static final int DPI_STEP = 2;
+    private static final int VIEWPORT_SETTLE_DELAY = 50;
+    private static final int REFINE_DELAY = 300;
+    /**
+     * Background tasks running at the same time: file loading and rendering
+     * can overlap, while each rendering task spreads its pages on the
+     * rendering threads.
+     */
+    private static final int SCHEDULER_THREADS = 2;
+    private static final int METRICS_INTERVAL = 1000;
 
-    private final Map<String, Page> pageMap = new HashMap<>();
-    private final DefaultListModel pageListModel;
+    /**
+     * Default number of undo levels.
+     */
+    public static final int DEFAULT_UNDO_LEVELS = 500;
+
+    private final PageListModel pageListModel;
+    private final Session session;
+    private final ListUpdateBatcher listUpdates;
 
     // Package-local parameters for the persistent configuration
     boolean isMaximized;
     File lastOpenDir;
     int thumbWidth = DEFAULT_THUMB_WIDTH;
     int thumbHeight = DEFAULT_THUMB_HEIGHT;
+    int renderThreads = Runtime.getRuntime().availableProcessors();
+    int thumbnailStoreSize = DiskThumbnailCache.DEFAULT_SIZE_MB;
+    int thumbnailMemory = ThumbnailStore.DEFAULT_BUDGET_MB;
+    int saveMemory = PdfSaver.DEFAULT_MEMORY_MB;
+    int undoLevels = DEFAULT_UNDO_LEVELS;
+    boolean showMetrics;
     private final Config config = new Config();
+    private final ThumbnailRenderer thumbnailRenderer;
+    private final TaskScheduler scheduler = new TaskScheduler(SCHEDULER_THREADS);
+    // Groups of the running tasks, replaced when they are cancelled
+    private TaskScheduler.Token loadToken = new TaskScheduler.Token();
+    private TaskScheduler.Token renderToken = new TaskScheduler.Token();
+    // Pages whose thumbnails were requested but not published yet
+    private final Set<Page> pendingThumbnails = new HashSet<>();
+    private final Timer viewportTimer = new Timer(VIEWPORT_SETTLE_DELAY, evt -> requestVisibleThumbnails());
+    private final Timer refineTimer = new Timer(REFINE_DELAY, evt -> refineVisibleThumbnails());
+    private final Timer metricsTimer = new Timer(METRICS_INTERVAL, evt -> updateMetrics());
+    private final ThumbnailStore thumbnailStore;
+    private final ThumbnailCache thumbnailCache;
+    private final DiskThumbnailCache diskThumbnailCache;
+    private final ImageListRenderer cellRenderer = new ImageListRenderer();
 
-    class Page {
+    /**
+     * Cell renderer that paints the thumbnail and the two caption lines
+     * directly, without a label layout and without HTML text. The cells have
+     * a fixed size that depends only on the zoom level, so the list never
+     * asks the renderer to lay itself out: only the visible cells are
+     * rendered, when they are painted.
+     */
+    class ImageListRenderer extends JComponent implements ListCellRenderer<Page> {
 
-        private static final int MAX_FILENAME_LENGTH = 15;
+        private static final int PADDING = 4;
 
-        public int index;
-        public File file;
-        public BufferedImage thumbnail;
-        public int rotation;
+        private final Font font = new Font("helvetica", Font.PLAIN, 12);
+        private final Font nameFont = font.deriveFont(10f);
+        private final Map<?, ?> desktopHints = (Map<?, ?>) Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+        private Page page;
+        private Icon icon;
 
-        public Page(int index, File file, BufferedImage thumbnail) {
-            this.index = index;
-            this.file = file;
-            this.thumbnail = thumbnail;
+        ImageListRenderer() {
+            setOpaque(true);
         }
 
-        private BufferedImage resize(BufferedImage img, int newW, int newH) {
-            Image tmp = img.getScaledInstance(newW, newH, Image.SCALE_SMOOTH);
-            BufferedImage dimg = new BufferedImage(newW, newH, BufferedImage.TYPE_INT_ARGB);
-            Graphics2D g2d = dimg.createGraphics();
-            g2d.drawImage(tmp, 0, 0, null);
-            g2d.dispose();
-            return dimg;
+        /**
+         * Size of the cells for the specified thumbnail size.
+         *
+         * @param thumbWidth
+         * @param thumbHeight
+         * @return
+         */
+        Dimension getCellSize(int thumbWidth, int thumbHeight) {
+            FontMetrics nameMetrics = getFontMetrics(nameFont);
+            FontMetrics metrics = getFontMetrics(font);
+            int captionWidth = nameMetrics.charWidth('n') * Page.MAX_FILENAME_LENGTH;
+            return new Dimension(Math.max(thumbWidth, captionWidth) + 2 * PADDING,
+                    thumbHeight + nameMetrics.getHeight() + metrics.getHeight() + 3 * PADDING);
         }
 
-        public void rotate(int degrees) {
-            rotation += degrees;
-            AffineTransform tx = new AffineTransform();
-            double radians = degrees * Math.PI / 180;
-            tx.rotate(radians, thumbnail.getWidth() / 2, thumbnail.getHeight() / 2);
-            AffineTransformOp op = new AffineTransformOp(tx, AffineTransformOp.TYPE_BILINEAR);
-            thumbnail = op.filter(thumbnail, null);
+        @Override
+        public Component getListCellRendererComponent(
+                JList<? extends Page> list, Page value, int index,
+                boolean isSelected, boolean cellHasFocus) {
+            page = value;
+            icon = thumbnailCache.getIcon(value);
+            setBackground(isSelected ? list.getSelectionBackground() : list.getBackground());
+            setForeground(isSelected ? list.getSelectionForeground() : list.getForeground());
+            return this;
         }
 
-        public String getCaption() {
-            String fileName = this.file.getName();
-            int fileNameLen = fileName.length();
-            if (fileNameLen > MAX_FILENAME_LENGTH) {
-                fileName = fileName.substring(0, MAX_FILENAME_LENGTH - 2) + "…";
+        @Override
+        protected void paintComponent(Graphics g) {
+            Graphics2D g2d = (Graphics2D) g;
+            if (desktopHints != null) {
+                g2d.addRenderingHints(desktopHints);
             }
-            int page = this.index + 1;
-            return String.format("<html><div style='text-align: center'><small>%s</small><br>Page %d</div></html>", fileName, page);
+            int width = getWidth();
+            g2d.setColor(getBackground());
+            g2d.fillRect(0, 0, width, getHeight());
+            // The thumbnails sit on the bottom of the thumbnail area, right
+            // above the caption
+            int thumbBottom = PADDING + thumbHeight;
+            icon.paintIcon(this, g2d, (width - icon.getIconWidth()) / 2, thumbBottom - icon.getIconHeight());
+            g2d.setColor(getForeground());
+            g2d.setFont(nameFont);
+            FontMetrics nameMetrics = g2d.getFontMetrics();
+            int y = thumbBottom + PADDING + nameMetrics.getAscent();
+            String name = page.getCaptionName();
+            g2d.drawString(name, (width - nameMetrics.stringWidth(name)) / 2, y);
+            g2d.setFont(font);
+            FontMetrics metrics = g2d.getFontMetrics();
+            y += nameMetrics.getDescent() + metrics.getAscent();
+            String caption = page.getCaptionPage();
+            g2d.drawString(caption, (width - metrics.stringWidth(caption)) / 2, y);
         }
 
-        public ImageIcon getThumbnail() {
-            int w = thumbnail.getWidth();
-            int h = thumbnail.getHeight();
-            int newW;
-            int newH;
-            if (h > w) {
-                newH = thumbHeight;
-                newW = w * thumbHeight / h;
-            } else {
-                newW = thumbWidth;
-                newH = h * thumbWidth / w;
-            }
-            return new ImageIcon(this.resize(thumbnail, newW, newH));
+        // As in DefaultListCellRenderer, the notifications below are useless
+        // for a component that is only used to paint the cells
+        @Override
+        public void invalidate() {
         }
-    }
 
-    class ImageListRenderer extends DefaultListCellRenderer {
+        @Override
+        public void validate() {
+        }
 
-        private final Font font = new Font("helvetica", Font.PLAIN, 12);
+        @Override
+        public void revalidate() {
+        }
 
         @Override
-        public Component getListCellRendererComponent(
-                JList list, Object value, int index,
-                boolean isSelected, boolean cellHasFocus) {
+        public void repaint(long tm, int x, int y, int width, int height) {
+        }
 
-            Page page = pageMap.get(value.toString());
-            JLabel label = (JLabel) super.getListCellRendererComponent(
-                    list, page.getCaption(), index, isSelected, cellHasFocus);
-            label.setIcon(page.getThumbnail());
-            label.setHorizontalTextPosition(JLabel.CENTER);
-            label.setVerticalTextPosition(JLabel.BOTTOM);
-            label.setFont(font);
-            return label;
+        @Override
+        public void repaint(Rectangle r) {
         }
     }
 
@@ -171,11 +235,215 @@ public class MainFrame extends JFrame {
         } catch (IOException ex) {
             // NOP
         }
-        pageList.setCellRenderer(new ImageListRenderer());
-        pageListModel = (DefaultListModel) pageList.getModel();
+        pageList.setCellRenderer(cellRenderer);
+        pageListModel = (PageListModel) pageList.getModel();
+        listUpdates = new ListUpdateBatcher(pageListModel, pbStatus, ListUpdateBatcher.DEFAULT_INTERVAL);
         pageList.setTransferHandler(new DndTransferHandler(pageList, pageListModel, this));
         pbStatus.setVisible(false);
         config.load(this);
+        updateCellSize();
+        thumbnailRenderer = new ThumbnailRenderer(renderThreads);
+        diskThumbnailCache = DiskThumbnailCache.createDefault(thumbnailStoreSize);
+        long thumbnailBytes = thumbnailMemory * 1024L * 1024L;
+        long iconBytes = (long) (thumbnailBytes * ThumbnailCache.DEFAULT_MEMORY_SHARE);
+        thumbnailStore = new ThumbnailStore(thumbnailBytes - iconBytes);
+        thumbnailCache = new ThumbnailCache(thumbnailStore, iconBytes, thumbWidth, thumbHeight, pageList::repaint);
+        session = new Session(pageListModel, undoLevels, saveMemory * 1024L * 1024L);
+        session.setUndoListener(this::updateUndoMenu);
+        session.setDiscardListener(this::releasePages);
+        // The renderer keeps its own copies of the sources open
+        session.getRegistry().addCloseListener(thumbnailRenderer::close);
+        updateUndoMenu();
+        registerMetrics();
+        jmiShowMetrics.setSelected(showMetrics);
+        showMetrics(showMetrics);
+        viewportTimer.setRepeats(false);
+        refineTimer.setRepeats(false);
+        JViewport viewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, pageList);
+        viewport.addChangeListener(evt -> viewportTimer.restart());
+        pageListModel.addListDataListener(new ListDataListener() {
+            @Override
+            public void intervalAdded(ListDataEvent evt) {
+                viewportTimer.restart();
+            }
+
+            @Override
+            public void intervalRemoved(ListDataEvent evt) {
+                viewportTimer.restart();
+            }
+
+            @Override
+            public void contentsChanged(ListDataEvent evt) {
+                viewportTimer.restart();
+            }
+        });
+    }
+
+    /**
+     * Request the rendering of the thumbnails of the cells that are inside or
+     * near the scroll viewport: the visible cells first, then one screen
+     * after and one screen before them. This is the cheap pass, at no more
+     * than {@link #PREVIEW_DPI}; the visible thumbnails are refined once the
+     * viewport and the zoom level have been stable for a moment.
+     */
+    private void requestVisibleThumbnails() {
+        int first = pageList.getFirstVisibleIndex();
+        int last = pageList.getLastVisibleIndex();
+        if (first < 0 || last < 0) {
+            return;
+        }
+        int margin = last - first + 1;
+        List<Page> pages = new ArrayList<>();
+        List<Integer> dpis = new ArrayList<>();
+        collectUnrequested(first, last, pages, dpis);
+        scheduleThumbnails(TaskScheduler.Priority.VISIBLE, pages, dpis);
+        pages = new ArrayList<>();
+        dpis = new ArrayList<>();
+        collectUnrequested(last + 1, Math.min(pageListModel.getSize() - 1, last + margin), pages, dpis);
+        collectUnrequested(Math.max(0, first - margin), first - 1, pages, dpis);
+        scheduleThumbnails(TaskScheduler.Priority.PREFETCH, pages, dpis);
+        refineTimer.restart();
+    }
+
+    private void collectUnrequested(int from, int to, List<Page> pages, List<Integer> dpis) {
+        for (int i = from; i <= to; ++i) {
+            Page page = pageListModel.getElementAt(i);
+            if (page.requestedDpi == 0 && !thumbnailStore.contains(page)) {
+                page.requestedDpi = Math.min(getTargetDpi(page), PREVIEW_DPI);
+                pages.add(page);
+                dpis.add(page.requestedDpi);
+            }
+        }
+    }
+
+    /**
+     * Render again the visible thumbnails whose resolution is lower than the
+     * one needed by the current thumbnail size.
+     */
+    private void refineVisibleThumbnails() {
+        int first = pageList.getFirstVisibleIndex();
+        int last = pageList.getLastVisibleIndex();
+        if (first < 0 || last < 0) {
+            return;
+        }
+        List<Page> pages = new ArrayList<>();
+        List<Integer> dpis = new ArrayList<>();
+        for (int i = first; i <= last; ++i) {
+            Page page = pageListModel.getElementAt(i);
+            int dpi = getTargetDpi(page);
+            if (page.requestedDpi != 0 && page.requestedDpi < dpi) {
+                page.requestedDpi = dpi;
+                pages.add(page);
+                dpis.add(dpi);
+            }
+        }
+        scheduleThumbnails(TaskScheduler.Priority.VISIBLE, pages, dpis);
+    }
+
+    private void scheduleThumbnails(TaskScheduler.Priority priority, List<Page> pages, List<Integer> dpis) {
+        if (pages.isEmpty()) {
+            return;
+        }
+        pendingThumbnails.addAll(pages);
+        TaskScheduler.Token token = renderToken;
+        scheduler.submit(priority, token, () -> renderThumbnails(pages, dpis, token));
+    }
+
+    /**
+     * Cancel the thumbnail requests that are still queued or running; the
+     * pages that lose their request can be requested again.
+     */
+    private void cancelThumbnails() {
+        scheduler.cancel(renderToken);
+        renderToken = new TaskScheduler.Token();
+        for (Page page : pendingThumbnails) {
+            page.requestedDpi = thumbnailStore.getDpi(page);
+        }
+        pendingThumbnails.clear();
+    }
+
+    /**
+     * Resolution at which the longer side of the page, as given by its
+     * MediaBox, covers the longer side of the thumbnail.
+     */
+    private int getTargetDpi(Page page) {
+        float side = Math.max(page.width, page.height);
+        if (side <= 0) {
+            return PREVIEW_DPI;
+        }
+        double dpi = Math.max(thumbWidth, thumbHeight) * 72.0 / side;
+        return Math.max(1, (int) Math.ceil(dpi / DPI_STEP)) * DPI_STEP;
+    }
+
+    /**
+     * Render the thumbnails of the specified pages at the specified
+     * resolutions, grouping the consecutive pages of the same file so that
+     * they are rendered in parallel. The thumbnails found in the persistent
+     * store are not rendered again, and neither are the pages that embed a
+     * big enough thumbnail.
+     */
+    private void renderThumbnails(List<Page> pages, List<Integer> dpis, TaskScheduler.Token token) {
+        long embeddedBefore = thumbnailRenderer.getEmbeddedPages();
+        long renderedBefore = thumbnailRenderer.getRenderedPages();
+        List<Page> missing = new ArrayList<>(pages.size());
+        List<Integer> missingDpis = new ArrayList<>(pages.size());
+        for (int i = 0; i < pages.size(); ++i) {
+            Page page = pages.get(i);
+            int dpi = dpis.get(i);
+            BufferedImage bim = diskThumbnailCache.get(page.file, page.index, dpi);
+            if (bim != null) {
+                publishThumbnail(page, bim, dpi);
+            } else {
+                missing.add(page);
+                missingDpis.add(dpi);
+            }
+        }
+        int runStart = 0;
+        for (int i = 1; i <= missing.size() && !token.isCancelled(); ++i) {
+            if (i < missing.size()
+                    && missing.get(i).file.equals(missing.get(i - 1).file)
+                    && missing.get(i).index == missing.get(i - 1).index + 1
+                    && missingDpis.get(i).equals(missingDpis.get(i - 1))) {
+                continue;
+            }
+            List<Page> run = missing.subList(runStart, i);
+            Page firstPage = run.get(0);
+            int dpi = missingDpis.get(runStart);
+            try {
+                thumbnailRenderer.render(firstPage.file, firstPage.index, firstPage.index + run.size(), dpi, token::isCancelled, (index, bim, embedded) -> {
+                    // Embedded thumbnails are cheaper to decode again than
+                    // to write to the persistent store
+                    if (!embedded) {
+                        diskThumbnailCache.put(firstPage.file, index, dpi, bim);
+                    }
+                    publishThumbnail(run.get(index - firstPage.index), bim, dpi);
+                });
+            } catch (IOException ex) {
+                Logger.getLogger(MainFrame.class.getName()).log(Level.WARNING, null, ex);
+            }
+            runStart = i;
+        }
+        Logger.getLogger(MainFrame.class.getName()).log(Level.FINE, "Thumbnails: {0} stored, {1} embedded, {2} rendered",
+                new Object[]{pages.size() - missing.size(),
+                    thumbnailRenderer.getEmbeddedPages() - embeddedBefore,
+                    thumbnailRenderer.getRenderedPages() - renderedBefore});
+    }
+
+    private void publishThumbnail(Page page, BufferedImage bim, int dpi) {
+        ThumbnailStore.Compressed compressed = ThumbnailStore.compress(bim, dpi);
+        SwingUtilities.invokeLater(() -> {
+            pendingThumbnails.remove(page);
+            if (thumbnailStore.getDpi(page) >= dpi) {
+                // A sharper thumbnail arrived first
+                return;
+            }
+            // The new resolution replaces the old one in the store
+            for (Page evicted : thumbnailStore.put(page, compressed)) {
+                evicted.requestedDpi = 0;
+            }
+            thumbnailCache.invalidate(page);
+            pageList.repaint();
+        });
     }
 
     private void addPdfFiles() {
@@ -197,47 +465,73 @@ public class MainFrame extends JFrame {
         }
     }
 
+    /**
+     * Add the pages of the specified PDF files at the end of the list. Only
+     * the page tree of each file is read, so the pages can be arranged and
+     * saved right away; their thumbnails are rendered afterwards, as they
+     * are shown.
+     *
+     * The files are read one after the other by scheduled tasks, so the
+     * thumbnails of the visible pages can be rendered in between, and the
+     * loading stops when all the pages are removed.
+     *
+     * @param pdfFiles
+     */
     void addPdfFiles(File[] pdfFiles) {
+        pbStatus.setVisible(true);
+        pbStatus.setString("Loading PDF...");
+        pbStatus.setMaximum(pdfFiles.length);
+        pbStatus.setValue(0);
+        loadPdfFile(pdfFiles, 0, loadToken);
+    }
+
+    private void loadPdfFile(File[] pdfFiles, int index, TaskScheduler.Token token) {
         final MainFrame mainFrame = this;
-        new Thread(() -> {
-            int offset = pageListModel.size();
-            for (File pdfFile : pdfFiles) {
-                try (PDDocument document = PDDocument.load(pdfFile)) {
-                    PDFRenderer pdfRenderer = new PDFRenderer(document);
-                    int numPages = document.getNumberOfPages();
-                    pbStatus.setVisible(true);
-                    pbStatus.setString("Loading PDF...");
-                    pbStatus.setMaximum(numPages);
-                    for (int page = 0; page < numPages; ++page) {
-                        BufferedImage bim = pdfRenderer.renderImageWithDPI(page, DEFAULT_THUMB_DPI, ImageType.RGB);
-                        final String key = "" + (offset + page);
-                        final int realPage = page + 1;
-                        final int offsettedPage = offset + page;
-                        pageMap.put(key, new Page(page, pdfFile, bim));
-                        SwingUtilities.invokeLater(() -> {
-                            pbStatus.setValue(realPage);
-                            pageListModel.add(offsettedPage, key);
-                        });
-                    }
-                    SwingUtilities.invokeLater(() -> {
-                        pbStatus.setValue(0);
-                        pbStatus.setString("");
-                        pbStatus.setVisible(false);
-                    });
-                    offset += numPages;
-                } catch (IOException ex) {
-                    SwingUtilities.invokeLater(() -> {
-                        JOptionPane.showMessageDialog(mainFrame, "Error while reading PDF file", Const.APPNAME, JOptionPane.ERROR_MESSAGE);
-                    });
-                }
+        scheduler.submit(TaskScheduler.Priority.LOADING, token, () -> {
+            try {
+                List<Page> pages = session.readPages(pdfFiles[index]);
+                listUpdates.addPages(pages, token);
+            } catch (IOException ex) {
+                listUpdates.run(() -> {
+                    JOptionPane.showMessageDialog(mainFrame, "Error while reading PDF file", Const.APPNAME, JOptionPane.ERROR_MESSAGE);
+                });
             }
-        }).start();
+            listUpdates.setProgress(index + 1);
+            if (index + 1 < pdfFiles.length) {
+                loadPdfFile(pdfFiles, index + 1, token);
+            } else {
+                listUpdates.run(this::hideProgress);
+            }
+        });
+    }
+
+    /**
+     * Stop loading the files that are being added; the pages read so far
+     * but not added yet are discarded.
+     */
+    private void cancelLoading() {
+        scheduler.cancel(loadToken);
+        loadToken = new TaskScheduler.Token();
+        hideProgress();
+    }
+
+    private void hideProgress() {
+        pbStatus.setValue(0);
+        pbStatus.setString("");
+        pbStatus.setVisible(false);
     }
 
     private void savePdf() {
-        if (pageListModel.isEmpty()) {
+        if (pageListModel.getSize() == 0) {
             return;
         }
+        File selectedFile = chooseSaveFile();
+        if (selectedFile != null) {
+            savePdf(selectedFile);
+        }
+    }
+
+    private File chooseSaveFile() {
         JFileChooser fileChooser = new JFileChooser();
         if (lastOpenDir == null) {
             lastOpenDir = new File(System.getProperty("user.home"));
@@ -245,91 +539,114 @@ public class MainFrame extends JFrame {
         fileChooser.setCurrentDirectory(lastOpenDir);
         fileChooser.setFileFilter(new FileNameExtensionFilter("PDF Files", "pdf"));
         int result = fileChooser.showSaveDialog(this);
-        if (result == JFileChooser.APPROVE_OPTION) {
-            File selectedFile = fileChooser.getSelectedFile();
-            if (!selectedFile.getName().toLowerCase().endsWith(".pdf")) {
-                selectedFile = new File(selectedFile.getAbsolutePath() + ".pdf");
-            }
-            savePdf(selectedFile);
-            lastOpenDir = selectedFile.getParentFile();
-            config.set(this);
+        if (result != JFileChooser.APPROVE_OPTION) {
+            return null;
+        }
+        File selectedFile = fileChooser.getSelectedFile();
+        if (!selectedFile.getName().toLowerCase().endsWith(".pdf")) {
+            selectedFile = new File(selectedFile.getAbsolutePath() + ".pdf");
+        }
+        lastOpenDir = selectedFile.getParentFile();
+        config.set(this);
+        return selectedFile;
+    }
+
+    private void splitExport() {
+        if (pageListModel.getSize() == 0) {
+            return;
+        }
+        List<List<Page>> parts = SplitExportDialog.showOptions(this, pageListModel.getPages());
+        if (parts == null) {
+            return;
+        }
+        File selectedFile = chooseSaveFile();
+        if (selectedFile != null) {
+            SplitExportDialog dialog = new SplitExportDialog(this, parts, SplitPlan.outputFiles(selectedFile, parts.size()));
+            dialog.start(session.getRegistry(), renderThreads, saveMemory * 1024L * 1024L);
+            dialog.setVisible(true);
         }
     }
 
     private void savePdf(File file) {
         final MainFrame mainFrame = this;
+        List<Page> pages = pageListModel.getPages();
+        pbStatus.setVisible(true);
+        pbStatus.setString("Saving PDF...");
+        pbStatus.setMaximum(pages.size());
         new Thread(() -> {
-            Map<File, PDPageTree> pdfMap = new HashMap<>();
-            PDDocument newDoc = new PDDocument();
-            Enumeration e = pageListModel.elements();
-            int numPages = pageListModel.size();
-            pbStatus.setString("Saving PDF...");
-            pbStatus.setMaximum(numPages);
             try {
-                int count = 0;
-                while (e.hasMoreElements()) {
-                    String key = (String) e.nextElement();
-                    Page page = pageMap.get(key);
-                    PDPageTree allPages;
-                    if (!pdfMap.containsKey(page.file)) {
-                        PDDocument sourcePdf = PDDocument.load(page.file);
-                        allPages = sourcePdf.getDocumentCatalog().getPages();
-                        pdfMap.put(page.file, allPages);
-                    } else {
-                        allPages = pdfMap.get(page.file);
+                session.save(pages, file, new PdfSaver.Listener() {
+                    @Override
+                    public void pageAdded(int count, int total) {
+                        listUpdates.setProgress(count);
+                    }
+
+                    @Override
+                    public void sourceUpdated(List<Page> saved, int[] rotations) {
+                        listUpdates.run(() -> {
+                            session.updateSourceRotations(saved, rotations);
+                            refreshThumbnails(saved);
+                        });
                     }
-                    PDPage sourcePage = allPages.get(page.index);
-                    sourcePage.setRotation(page.rotation);
-                    newDoc.addPage(sourcePage);
-                    ++count;
-                    final int realPage = count;
-                    SwingUtilities.invokeLater(() -> {
-                        pbStatus.setValue(realPage);
-                    });
-                }
-                newDoc.save(file);
-                SwingUtilities.invokeLater(() -> {
+                });
+                listUpdates.run(() -> {
                     pbStatus.setValue(0);
                     pbStatus.setString("");
+                    pbStatus.setVisible(false);
                     JOptionPane.showMessageDialog(mainFrame, "The PDF file was saved correctly", Const.APPNAME, JOptionPane.INFORMATION_MESSAGE);
                 });
             } catch (IOException ex) {
-                JOptionPane.showMessageDialog(mainFrame, "Error while reading PDF file", Const.APPNAME, JOptionPane.ERROR_MESSAGE);
+                listUpdates.run(() -> {
+                    pbStatus.setValue(0);
+                    pbStatus.setString("");
+                    pbStatus.setVisible(false);
+                    JOptionPane.showMessageDialog(mainFrame, "Error while saving PDF file", Const.APPNAME, JOptionPane.ERROR_MESSAGE);
+                });
             }
         }).start();
     }
 
+    /**
+     * Render again the thumbnails of pages whose rotations were saved into
+     * their source file: that changes the rotation already applied to them.
+     */
+    private void refreshThumbnails(List<Page> pages) {
+        cancelThumbnails();
+        thumbnailCache.remove(pages);
+        thumbnailStore.remove(pages);
+        for (Page page : pages) {
+            page.requestedDpi = 0;
+        }
+        viewportTimer.restart();
+    }
+
     private void removeAllPages() {
-        if (pageListModel.isEmpty()) {
+        if (pageListModel.getSize() == 0) {
             return;
         }
         int result = JOptionPane.showConfirmDialog(this, "Do you really want to remove all pages?", Const.APPNAME,
                 JOptionPane.YES_NO_OPTION,
                 JOptionPane.QUESTION_MESSAGE);
         if (result == JOptionPane.YES_OPTION) {
-            pageListModel.removeAllElements();
-            pageMap.clear();
+            cancelLoading();
+            int[] all = new int[pageListModel.getSize()];
+            for (int i = 0; i < all.length; ++i) {
+                all[i] = i;
+            }
+            removePages(all);
         }
     }
 
     private void removeSelectedPages() {
-        if (pageListModel.isEmpty()) {
+        if (pageListModel.getSize() == 0) {
             return;
         }
         int[] selection = pageList.getSelectedIndices();
         if (selection.length == 0) {
             return;
         }
-        for (int i = 0; i < selection.length; ++i) {
-            String key = (String) pageListModel.remove(selection[i]);
-            pageMap.remove(key);
-            for (int k = i + 1; k < selection.length; k++) {
-                if (selection[k] > selection[i]) {
-                    --selection[k];
-                }
-            }
-        }
-        int size = pageListModel.size();
+        removePages(selection);
+        int size = pageListModel.getSize();
         if (selection[0] < size) {
             pageList.setSelectedIndex(selection[0]);
         } else {
@@ -337,6 +654,52 @@ public class MainFrame extends JFrame {
         }
     }
 
+    /**
+     * Remove the pages at the specified positions, in ascending order. Their
+     * thumbnails and source references are released when no undo can bring
+     * them back.
+     */
+    private void removePages(int[] indices) {
+        // The visible pages are requested again once the list has changed
+        cancelThumbnails();
+        // The selection would otherwise be shifted at each list event
+        pageList.clearSelection();
+        session.remove(indices);
+    }
+
+    /**
+     * Release the thumbnails of pages that left the arrangement for good, in
+     * a single pass; the session releases their source references.
+     */
+    private void releasePages(List<Page> pages) {
+        thumbnailCache.remove(pages);
+        thumbnailStore.remove(pages);
+    }
+
+    private void undo() {
+        if (session.getUndoManager().canUndo()) {
+            pageList.clearSelection();
+            session.undo();
+            updateUndoMenu();
+        }
+    }
+
+    private void redo() {
+        if (session.getUndoManager().canRedo()) {
+            pageList.clearSelection();
+            session.redo();
+            updateUndoMenu();
+        }
+    }
+
+    private void updateUndoMenu() {
+        UndoManager undoManager = session.getUndoManager();
+        jmiUndo.setEnabled(undoManager.canUndo());
+        jmiUndo.setText(undoManager.getUndoPresentationName());
+        jmiRedo.setEnabled(undoManager.canRedo());
+        jmiRedo.setText(undoManager.getRedoPresentationName());
+    }
+
     private void closeApplication() {
         config.save(this);
         dispose();
@@ -362,17 +725,60 @@ public class MainFrame extends JFrame {
     }
 
     private void rotateSelection(int degrees) {
-        int[] selection = pageList.getSelectedIndices();
-        for (int i : selection) {
-            String key = (String) pageListModel.get(i);
-            Page page = pageMap.get(key);
-            page.rotate(degrees);
+        session.rotate(pageList.getSelectedIndices(), degrees);
+    }
+
+    /**
+     * Publish the state of the caches and of the scheduler next to the
+     * timers of the hot paths, and export them all through JMX.
+     */
+    private void registerMetrics() {
+        Metrics.gauge("ThumbnailCacheHitRate", () -> Metrics.hitRate(thumbnailCache.getHits(), thumbnailCache.getMisses()));
+        Metrics.gauge("DiskCacheHitRate", () -> Metrics.hitRate(diskThumbnailCache.getHits(), diskThumbnailCache.getMisses()));
+        Metrics.gauge("EmbeddedThumbnailRate", () -> Metrics.hitRate(thumbnailRenderer.getEmbeddedPages(), thumbnailRenderer.getRenderedPages()));
+        Metrics.gauge("ThumbnailStoreMB", () -> thumbnailStore.getSize() / (1024.0 * 1024.0));
+        Metrics.gauge("QueuedTasks", scheduler::getQueuedTasks);
+        Metrics.registerMBean();
+    }
+
+    /**
+     * Show or hide the performance status next to the progress bar; it is
+     * refreshed only while it is shown.
+     */
+    private void showMetrics(boolean show) {
+        showMetrics = show;
+        lbMetrics.setVisible(show);
+        if (show) {
+            updateMetrics();
+            metricsTimer.start();
+        } else {
+            metricsTimer.stop();
+        }
+        config.set(this);
+    }
+
+    private void updateMetrics() {
+        Map<String, Double> gauges = Metrics.getGauges();
+        lbMetrics.setText(String.format("Render %.1f p/s, p50 %.1f ms, p99 %.1f ms | Cache %.0f%% | Heap %.0f/%.0f MB",
+                Metrics.RENDER.getRate() + Metrics.EMBEDDED.getRate(),
+                Metrics.RENDER.getPercentileMillis(50), Metrics.RENDER.getPercentileMillis(99),
+                gauges.get("ThumbnailCacheHitRate") * 100,
+                gauges.get("HeapUsedMB"), gauges.get("HeapMaxMB")));
+        StringBuilder tooltip = new StringBuilder("<html><table>"
+                + "<tr><th></th><th>Count</th><th>Per second</th><th>p50 ms</th><th>p99 ms</th></tr>");
+        for (Metrics.Timer timer : Metrics.getTimers()) {
+            tooltip.append(String.format("<tr><td>%s</td><td>%d</td><td>%.1f</td><td>%.2f</td><td>%.2f</td></tr>",
+                    timer.getDescription(), timer.getCount(), timer.getRate(),
+                    timer.getPercentileMillis(50), timer.getPercentileMillis(99)));
+        }
+        for (Map.Entry<String, Double> gauge : gauges.entrySet()) {
+            tooltip.append(String.format("<tr><td>%s</td><td colspan='4'>%.2f</td></tr>", gauge.getKey(), gauge.getValue()));
         }
-        pageList.repaint();
+        lbMetrics.setToolTipText(tooltip.append("</table></html>").toString());
     }
 
     private void zoom(int pixels) {
-        if (pageListModel.isEmpty()) {
+        if (pageListModel.getSize() == 0) {
             return;
         }
         int newThumbWidth = thumbWidth + pixels;
@@ -383,12 +789,23 @@ public class MainFrame extends JFrame {
                 && newThumbHeight <= MAX_THUMB_HEIGHT) {
             thumbWidth = newThumbWidth;
             thumbHeight = newThumbHeight;
-            // TODO: this could be done way better... however, repaint/revalidate won't do
-            pageListModel.set(0, pageListModel.get(0));
+            thumbnailCache.setSize(thumbWidth, thumbHeight);
+            updateCellSize();
+            viewportTimer.restart();
             config.set(this);
         }
     }
 
+    /**
+     * Give the list cells the size of the current zoom level; the list lays
+     * itself out from it, without rendering any cell.
+     */
+    private void updateCellSize() {
+        Dimension cellSize = cellRenderer.getCellSize(thumbWidth, thumbHeight);
+        pageList.setFixedCellWidth(cellSize.width);
+        pageList.setFixedCellHeight(cellSize.height);
+    }
+
     /**
      * This method is called from within the constructor to initialize the form.
      * WARNING: Do NOT modify this code. The content of this method is always
@@ -409,16 +826,23 @@ public class MainFrame extends JFrame {
         javax.swing.JScrollPane jScrollPane1 = new javax.swing.JScrollPane();
         pageList = new javax.swing.JList<>();
         pbStatus = new javax.swing.JProgressBar();
+        lbMetrics = new javax.swing.JLabel();
         javax.swing.JMenuBar jMenuBar1 = new javax.swing.JMenuBar();
         javax.swing.JMenu jMenu1 = new javax.swing.JMenu();
         jmiAddFile = new javax.swing.JMenuItem();
         jmiSave = new javax.swing.JMenuItem();
+        jmiSplitExport = new javax.swing.JMenuItem();
         jSeparator2 = new javax.swing.JPopupMenu.Separator();
         jmiExit = new javax.swing.JMenuItem();
         javax.swing.JMenu jMenu4 = new javax.swing.JMenu();
         jmiZoomIn = new javax.swing.JMenuItem();
         jmiZoomOut = new javax.swing.JMenuItem();
+        jSeparator5 = new javax.swing.JPopupMenu.Separator();
+        jmiShowMetrics = new javax.swing.JCheckBoxMenuItem();
         javax.swing.JMenu jMenu3 = new javax.swing.JMenu();
+        jmiUndo = new javax.swing.JMenuItem();
+        jmiRedo = new javax.swing.JMenuItem();
+        jSeparator4 = new javax.swing.JPopupMenu.Separator();
         jmiRotateClockwise = new javax.swing.JMenuItem();
         jmiRotateCounterclockwise = new javax.swing.JMenuItem();
         jSeparator1 = new javax.swing.JPopupMenu.Separator();
@@ -557,8 +981,8 @@ public class MainFrame extends JFrame {
         });
         jToolBar1.add(btRemoveSelectedPages);
 
-        pageList.setModel(new DefaultListModel<String>());
-        pageList.setSelectionMode(javax.swing.ListSelectionModel.SINGLE_INTERVAL_SELECTION);
+        pageList.setModel(new PageListModel());
+        pageList.setSelectionMode(javax.swing.ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
         pageList.setDragEnabled(true);
         pageList.setDropMode(javax.swing.DropMode.INSERT);
         pageList.setLayoutOrientation(javax.swing.JList.HORIZONTAL_WRAP);
@@ -568,6 +992,8 @@ public class MainFrame extends JFrame {
         pbStatus.setString("");
         pbStatus.setStringPainted(true);
 
+        lbMetrics.setBorder(javax.swing.BorderFactory.createEmptyBorder(0, 4, 0, 4));
+
         jMenu1.setText("File");
 
         jmiAddFile.setText("Add File...");
@@ -586,6 +1012,14 @@ public class MainFrame extends JFrame {
             }
         });
         jMenu1.add(jmiSave);
+
+        jmiSplitExport.setText("Split Export...");
+        jmiSplitExport.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                jmiSplitExportActionPerformed(evt);
+            }
+        });
+        jMenu1.add(jmiSplitExport);
         jMenu1.add(jSeparator2);
 
         jmiExit.setText("Exit");
@@ -617,11 +1051,39 @@ public class MainFrame extends JFrame {
             }
         });
         jMenu4.add(jmiZoomOut);
+        jMenu4.add(jSeparator5);
+
+        jmiShowMetrics.setText("Performance Status");
+        jmiShowMetrics.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                jmiShowMetricsActionPerformed(evt);
+            }
+        });
+        jMenu4.add(jmiShowMetrics);
 
         jMenuBar1.add(jMenu4);
 
         jMenu3.setText("Edit");
 
+        jmiUndo.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_Z, java.awt.event.InputEvent.CTRL_DOWN_MASK));
+        jmiUndo.setText("Undo");
+        jmiUndo.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                jmiUndoActionPerformed(evt);
+            }
+        });
+        jMenu3.add(jmiUndo);
+
+        jmiRedo.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_Y, java.awt.event.InputEvent.CTRL_DOWN_MASK));
+        jmiRedo.setText("Redo");
+        jmiRedo.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                jmiRedoActionPerformed(evt);
+            }
+        });
+        jMenu3.add(jmiRedo);
+        jMenu3.add(jSeparator4);
+
         jmiRotateClockwise.setText("Rotate Clockwise");
         jmiRotateClockwise.addActionListener(new java.awt.event.ActionListener() {
             public void actionPerformed(java.awt.event.ActionEvent evt) {
@@ -687,8 +1149,11 @@ public class MainFrame extends JFrame {
         layout.setHorizontalGroup(
             layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
             .addComponent(jToolBar1, javax.swing.GroupLayout.DEFAULT_SIZE, 400, Short.MAX_VALUE)
-            .addComponent(pbStatus, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
             .addComponent(jScrollPane1, javax.swing.GroupLayout.Alignment.TRAILING)
+            .addGroup(layout.createSequentialGroup()
+                .addComponent(pbStatus, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(lbMetrics))
         );
         layout.setVerticalGroup(
             layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
@@ -697,7 +1162,9 @@ public class MainFrame extends JFrame {
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(jScrollPane1, javax.swing.GroupLayout.DEFAULT_SIZE, 403, Short.MAX_VALUE)
                 .addGap(2, 2, 2)
-                .addComponent(pbStatus, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(pbStatus, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(lbMetrics)))
         );
 
         pack();
@@ -727,6 +1194,10 @@ public class MainFrame extends JFrame {
         savePdf();
     }//GEN-LAST:event_jmiSaveActionPerformed
 
+    private void jmiSplitExportActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jmiSplitExportActionPerformed
+        splitExport();
+    }//GEN-LAST:event_jmiSplitExportActionPerformed
+
     private void jmiRemoveSelectedPagesActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jmiRemoveSelectedPagesActionPerformed
         removeSelectedPages();
     }//GEN-LAST:event_jmiRemoveSelectedPagesActionPerformed
@@ -747,6 +1218,14 @@ public class MainFrame extends JFrame {
         rotateSelection(90);
     }//GEN-LAST:event_btRotateClockwiseActionPerformed
 
+    private void jmiUndoActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jmiUndoActionPerformed
+        undo();
+    }//GEN-LAST:event_jmiUndoActionPerformed
+
+    private void jmiRedoActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jmiRedoActionPerformed
+        redo();
+    }//GEN-LAST:event_jmiRedoActionPerformed
+
     private void jmiRotateClockwiseActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jmiRotateClockwiseActionPerformed
         rotateSelection(90);
     }//GEN-LAST:event_jmiRotateClockwiseActionPerformed
@@ -757,6 +1236,14 @@ public class MainFrame extends JFrame {
 
     private void formWindowClosed(java.awt.event.WindowEvent evt) {//GEN-FIRST:event_formWindowClosed
         config.save(this);
+        viewportTimer.stop();
+        listUpdates.stop();
+        scheduler.shutdown();
+        metricsTimer.stop();
+        thumbnailRenderer.shutdown();
+        thumbnailCache.shutdown();
+        diskThumbnailCache.shutdown();
+        session.close();
     }//GEN-LAST:event_formWindowClosed
 
     private void formComponentResized(java.awt.event.ComponentEvent evt) {//GEN-FIRST:event_formComponentResized
@@ -789,6 +1276,10 @@ public class MainFrame extends JFrame {
         zoom(-10);
     }//GEN-LAST:event_btZoomOutActionPerformed
 
+    private void jmiShowMetricsActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jmiShowMetricsActionPerformed
+        showMetrics(jmiShowMetrics.isSelected());
+    }//GEN-LAST:event_jmiShowMetricsActionPerformed
+
     /**
      * @param args the command line arguments
      */
@@ -814,18 +1305,25 @@ public class MainFrame extends JFrame {
     private javax.swing.JPopupMenu.Separator jSeparator1;
     private javax.swing.JPopupMenu.Separator jSeparator2;
     private javax.swing.JPopupMenu.Separator jSeparator3;
+    private javax.swing.JPopupMenu.Separator jSeparator4;
+    private javax.swing.JPopupMenu.Separator jSeparator5;
     private javax.swing.JMenuItem jmiAbout;
     private javax.swing.JMenuItem jmiAddFile;
     private javax.swing.JMenuItem jmiExit;
     private javax.swing.JMenuItem jmiOnlineHelp;
+    private javax.swing.JMenuItem jmiRedo;
     private javax.swing.JMenuItem jmiRemoveAllPages;
     private javax.swing.JMenuItem jmiRemoveSelectedPages;
     private javax.swing.JMenuItem jmiRotateClockwise;
     private javax.swing.JMenuItem jmiRotateCounterclockwise;
     private javax.swing.JMenuItem jmiSave;
+    private javax.swing.JCheckBoxMenuItem jmiShowMetrics;
+    private javax.swing.JMenuItem jmiSplitExport;
+    private javax.swing.JMenuItem jmiUndo;
     private javax.swing.JMenuItem jmiZoomIn;
     private javax.swing.JMenuItem jmiZoomOut;
-    private javax.swing.JList<String> pageList;
+    private javax.swing.JLabel lbMetrics;
+    private javax.swing.JList<Page> pageList;
     private javax.swing.JProgressBar pbStatus;
     // End of variables declaration//GEN-END:variables
 }
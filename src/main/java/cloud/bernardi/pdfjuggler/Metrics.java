@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.DoubleSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Process-wide performance counters of the hot paths: document parsing,
+ * page rendering, thumbnail scaling and saving.
+ *
+ * Each hot path has a {@link Timer} that counts its events, keeps a latency
+ * histogram and measures the recent throughput; gauges publish other values,
+ * such as the heap usage and the cache hit rates. Recording an event costs a
+ * few atomic increments, so the timers are always on. Everything is
+ * exported as the JMX MBean {@value #OBJECT_NAME}.
+ *
+ * @author rnd
+ */
+public final class Metrics {
+
+    /**
+     * Name of the exported MBean.
+     */
+    public static final String OBJECT_NAME = "cloud.bernardi.pdfjuggler:type=Metrics";
+
+    /**
+     * Parsing of a source document, by the registry or by a render worker.
+     */
+    public static final Timer PARSE = new Timer("Parse", "Source documents parsed");
+    /**
+     * Rendering of a page thumbnail.
+     */
+    public static final Timer RENDER = new Timer("Render", "Pages rendered");
+    /**
+     * Decoding of a thumbnail embedded in the source file.
+     */
+    public static final Timer EMBEDDED = new Timer("Embedded", "Embedded thumbnails decoded");
+    /**
+     * Scaling of a stored thumbnail to the icon shown in the list.
+     */
+    public static final Timer SCALE = new Timer("Scale", "Thumbnail icons scaled");
+    /**
+     * Copy of a page to the document being saved.
+     */
+    public static final Timer SAVE_COPY = new Timer("SaveCopy", "Pages copied to a saved file");
+    /**
+     * Writing of a saved document to its file.
+     */
+    public static final Timer SAVE_WRITE = new Timer("SaveWrite", "Saved files written");
+    /**
+     * Saving of rotations as an incremental update of their source.
+     */
+    public static final Timer SAVE_UPDATE = new Timer("SaveUpdate", "Rotations saved as incremental updates");
+
+    private static final List<Timer> TIMERS = Collections.unmodifiableList(Arrays.asList(
+            PARSE, RENDER, EMBEDDED, SCALE, SAVE_COPY, SAVE_WRITE, SAVE_UPDATE));
+    private static final Map<String, DoubleSupplier> GAUGES = new LinkedHashMap<>();
+
+    static {
+        gauge("HeapUsedMB", () -> getHeap().getUsed() / (1024.0 * 1024.0));
+        gauge("HeapMaxMB", () -> getHeap().getMax() / (1024.0 * 1024.0));
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Events of a hot path: their number, their latency distribution and
+     * their recent rate.
+     *
+     * The latencies are kept in a histogram of microseconds with eight
+     * linear buckets for each power of two, so the percentiles are accurate
+     * to about 6% whatever the magnitude. The rate is the number of events in
+     * the last complete seconds of a short sliding window.
+     */
+    public static final class Timer {
+
+        private static final int LINEAR_BUCKETS = 16;
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = LINEAR_BUCKETS + (63 - 4) * SUB_BUCKETS;
+        private static final int RATE_WINDOW = 6;
+
+        private final String name;
+        private final String description;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+        private final AtomicLongArray rateEvents = new AtomicLongArray(RATE_WINDOW);
+        private final AtomicLongArray rateSeconds = new AtomicLongArray(RATE_WINDOW);
+
+        private Timer(String name, String description) {
+            this.name = name;
+            this.description = description;
+        }
+
+        /**
+         * Short name, used as the prefix of the MBean attributes.
+         *
+         * @return
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * What the events are.
+         *
+         * @return
+         */
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * Start timing an event.
+         *
+         * @return the start time, to be passed to {@link #stop(long)}
+         */
+        public long start() {
+            return System.nanoTime();
+        }
+
+        /**
+         * Record an event started at the specified time.
+         *
+         * @param start
+         */
+        public void stop(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        /**
+         * Record an event with the specified duration.
+         *
+         * @param nanos
+         */
+        public void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            histogram.incrementAndGet(bucket(Math.max(0, nanos / 1000)));
+            long second = Math.floorDiv(System.nanoTime(), 1_000_000_000L);
+            int slot = (int) Math.floorMod(second, (long) RATE_WINDOW);
+            long slotSecond = rateSeconds.get(slot);
+            // Reusing a slot of an older second may lose a few concurrent
+            // events, which does not matter for a rate
+            if (slotSecond != second && rateSeconds.compareAndSet(slot, slotSecond, second)) {
+                rateEvents.set(slot, 0);
+            }
+            rateEvents.incrementAndGet(slot);
+        }
+
+        /**
+         * Number of events recorded.
+         *
+         * @return
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * Mean latency, in milliseconds.
+         *
+         * @return
+         */
+        public double getMeanMillis() {
+            long n = count.get();
+            return n == 0 ? 0 : totalNanos.get() / 1e6 / n;
+        }
+
+        /**
+         * Latency percentile, in milliseconds.
+         *
+         * @param percentile between 0 and 100
+         * @return
+         */
+        public double getPercentileMillis(double percentile) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                counts[i] = histogram.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return (lowerBound(i) + lowerBound(i + 1)) / 2 / 1000.0;
+                }
+            }
+            return lowerBound(BUCKETS) / 1000.0;
+        }
+
+        /**
+         * Events per second over the last few seconds.
+         *
+         * @return
+         */
+        public double getRate() {
+            long second = Math.floorDiv(System.nanoTime(), 1_000_000_000L);
+            long events = 0;
+            for (int slot = 0; slot < RATE_WINDOW; ++slot) {
+                long slotSecond = rateSeconds.get(slot);
+                // The current second is not complete yet
+                if (slotSecond < second && slotSecond >= second - (RATE_WINDOW - 1)) {
+                    events += rateEvents.get(slot);
+                }
+            }
+            return events / (double) (RATE_WINDOW - 1);
+        }
+
+        private static int bucket(long micros) {
+            if (micros < LINEAR_BUCKETS) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+        }
+
+        private static double lowerBound(int bucket) {
+            if (bucket < LINEAR_BUCKETS) {
+                return bucket;
+            }
+            int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+            int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+            return (double) (SUB_BUCKETS + subBucket) * (1L << (exponent - SUB_BUCKET_BITS));
+        }
+    }
+
+    /**
+     * All the timers.
+     *
+     * @return
+     */
+    public static List<Timer> getTimers() {
+        return TIMERS;
+    }
+
+    /**
+     * Publish a value computed when it is read, replacing any previous
+     * gauge with the same name.
+     *
+     * @param name
+     * @param value
+     */
+    public static void gauge(String name, DoubleSupplier value) {
+        synchronized (GAUGES) {
+            GAUGES.put(name, value);
+        }
+    }
+
+    /**
+     * Current values of the gauges.
+     *
+     * @return
+     */
+    public static Map<String, Double> getGauges() {
+        List<Map.Entry<String, DoubleSupplier>> gauges;
+        synchronized (GAUGES) {
+            gauges = new ArrayList<>(GAUGES.entrySet());
+        }
+        Map<String, Double> values = new LinkedHashMap<>();
+        for (Map.Entry<String, DoubleSupplier> gauge : gauges) {
+            values.put(gauge.getKey(), gauge.getValue().getAsDouble());
+        }
+        return values;
+    }
+
+    /**
+     * Ratio between two counters, or 0 if both are zero.
+     *
+     * @param hits
+     * @param misses
+     * @return
+     */
+    public static double hitRate(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    /**
+     * Export the metrics to the platform MBean server, once.
+     */
+    public static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Exporter(), new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException ex) {
+            // Already exported
+        } catch (JMException ex) {
+            Logger.getLogger(Metrics.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    private static MemoryUsage getHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    }
+
+    /**
+     * Read-only MBean with one attribute per timer statistic and per gauge,
+     * all numeric, so that any JMX scraper can collect them.
+     */
+    private static class Exporter implements DynamicMBean {
+
+        private static final String[] STATISTICS = {"Count", "PerSecond", "MeanMillis", "P50Millis", "P99Millis"};
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            for (Timer timer : TIMERS) {
+                if (attribute.startsWith(timer.getName())) {
+                    switch (attribute.substring(timer.getName().length())) {
+                        case "Count":
+                            return timer.getCount();
+                        case "PerSecond":
+                            return timer.getRate();
+                        case "MeanMillis":
+                            return timer.getMeanMillis();
+                        case "P50Millis":
+                            return timer.getPercentileMillis(50);
+                        case "P99Millis":
+                            return timer.getPercentileMillis(99);
+                        default:
+                            break;
+                    }
+                }
+            }
+            Double value = getGauges().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException ex) {
+                    // Unknown attributes are left out, as the interface allows
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Read-only attribute: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            // The MBean has no operations
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Timer timer : TIMERS) {
+                for (String statistic : STATISTICS) {
+                    String type = statistic.equals("Count") ? "long" : "double";
+                    attributes.add(new MBeanAttributeInfo(timer.getName() + statistic, type,
+                            timer.getDescription() + ": " + statistic, true, false, false));
+                }
+            }
+            for (String gauge : getGauges().keySet()) {
+                attributes.add(new MBeanAttributeInfo(gauge, "double", gauge, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "PDF Juggler performance metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+        }
+    }
+}
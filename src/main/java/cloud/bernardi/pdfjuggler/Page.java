@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler;
+
+import java.io.File;
+
+/**
+ * A page of a source PDF file, as arranged by the user.
+ *
+ * @author rnd
+ */
+public class Page {
+
+    /**
+     * Maximum length of the file name in the caption, ellipsis included.
+     */
+    static final int MAX_FILENAME_LENGTH = 15;
+
+    /**
+     * Identifier in the {@link PageListModel} page store, or -1.
+     */
+    public int id = -1;
+    public int index;
+    public File file;
+    /**
+     * Width and height of the page MediaBox, in points (zero if unknown).
+     */
+    public float width;
+    public float height;
+    /**
+     * Rotation stored in the source file, already applied to the rendered
+     * thumbnail.
+     */
+    public int sourceRotation;
+    /**
+     * Rotation of the page, in degrees (0, 90, 180 or 270).
+     */
+    public int rotation;
+    /**
+     * Resolution of the last thumbnail rendering requested for the page, or
+     * 0 if none was requested.
+     */
+    public int requestedDpi;
+    private String captionName;
+    private String captionPage;
+
+    public Page(int index, File file) {
+        this.index = index;
+        this.file = file;
+    }
+
+    public Page(int index, File file, float width, float height, int rotation) {
+        this.index = index;
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.sourceRotation = normalize(rotation);
+        this.rotation = sourceRotation;
+    }
+
+    private static int normalize(int degrees) {
+        return (degrees % 360 + 360) % 360;
+    }
+
+    /**
+     * Rotate the page; the thumbnail is rotated when its icon is built.
+     *
+     * @param degrees
+     */
+    public void rotate(int degrees) {
+        rotation = normalize(rotation + degrees);
+    }
+
+    /**
+     * Rotation still to be applied to the rendered thumbnail.
+     *
+     * @return
+     */
+    public int getThumbnailRotation() {
+        return normalize(rotation - sourceRotation);
+    }
+
+    /**
+     * First caption line: the file name, shortened if needed. It is built
+     * once and then reused at every paint.
+     *
+     * @return
+     */
+    public String getCaptionName() {
+        if (captionName == null) {
+            String fileName = this.file.getName();
+            int fileNameLen = fileName.length();
+            if (fileNameLen > MAX_FILENAME_LENGTH) {
+                fileName = fileName.substring(0, MAX_FILENAME_LENGTH - 2) + "…";
+            }
+            captionName = fileName;
+        }
+        return captionName;
+    }
+
+    /**
+     * Second caption line: the page number in the source file.
+     *
+     * @return
+     */
+    public String getCaptionPage() {
+        if (captionPage == null) {
+            captionPage = "Page " + (this.index + 1);
+        }
+        return captionPage;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Page-assembly expression, such as {@code a.pdf:1-10,b.pdf:5@90,a.pdf:11-}.
+ *
+ * The expression is a comma-separated list of items; each item is a file
+ * name, optionally followed by a colon and a page range ({@code N},
+ * {@code N-M}, {@code N-} or {@code -M}, one-based) and by an at sign and a
+ * clockwise rotation in degrees. An item without a page range stands for all
+ * the pages of the file.
+ *
+ * @author rnd
+ */
+public class PageExpression {
+
+    private static final Pattern ITEM = Pattern.compile("(.+?)(?::(\\d*)(-?)(\\d*))?(?:@(-?\\d+))?");
+
+    /**
+     * A range of pages of a file, with the rotation to apply to them.
+     */
+    public static class Item {
+
+        /**
+         * Source file.
+         */
+        public final File file;
+
+        /**
+         * First page of the range, one-based.
+         */
+        public final int first;
+
+        /**
+         * Last page of the range, one-based, or zero for the last page of the
+         * file.
+         */
+        public final int last;
+
+        /**
+         * Rotation to add to the pages, in degrees.
+         */
+        public final int rotation;
+
+        public Item(File file, int first, int last, int rotation) {
+            this.file = file;
+            this.first = first;
+            this.last = last;
+            this.rotation = rotation;
+        }
+    }
+
+    private final List<Item> items;
+
+    private PageExpression(List<Item> items) {
+        this.items = items;
+    }
+
+    /**
+     * Parse a page-assembly expression.
+     *
+     * @param expression
+     * @return
+     * @throws IllegalArgumentException if the expression is malformed
+     */
+    public static PageExpression parse(String expression) {
+        List<Item> items = new ArrayList<>();
+        for (String token : expression.split(",")) {
+            token = token.trim();
+            Matcher m = ITEM.matcher(token);
+            if (token.isEmpty() || !m.matches()) {
+                throw new IllegalArgumentException("Invalid page expression: " + token);
+            }
+            String from = m.group(2);
+            String dash = m.group(3);
+            String to = m.group(4);
+            int first = 1;
+            int last = 0;
+            if (from != null && (!from.isEmpty() || !to.isEmpty())) {
+                first = from.isEmpty() ? 1 : Integer.parseInt(from);
+                if (dash.isEmpty()) {
+                    last = first;
+                } else {
+                    last = to.isEmpty() ? 0 : Integer.parseInt(to);
+                }
+            } else if (from != null) {
+                // A bare colon is part of the file name, e.g. a drive letter
+                throw new IllegalArgumentException("Invalid page range: " + token);
+            }
+            if (first < 1 || (last != 0 && last < first)) {
+                throw new IllegalArgumentException("Invalid page range: " + token);
+            }
+            int rotation = m.group(5) != null ? Integer.parseInt(m.group(5)) : 0;
+            if (rotation % 90 != 0) {
+                throw new IllegalArgumentException("Rotation must be a multiple of 90 degrees: " + token);
+            }
+            items.add(new Item(new File(m.group(1)), first, last, rotation));
+        }
+        return new PageExpression(items);
+    }
+
+    /**
+     * Resolve the relative file names of the expression against a base
+     * directory.
+     *
+     * @param directory
+     * @return
+     */
+    public PageExpression resolve(File directory) {
+        List<Item> resolved = new ArrayList<>(items.size());
+        for (Item item : items) {
+            File file = item.file.isAbsolute() ? item.file : new File(directory, item.file.getPath());
+            resolved.add(new Item(file, item.first, item.last, item.rotation));
+        }
+        return new PageExpression(resolved);
+    }
+
+    /**
+     * The distinct files referenced by the expression.
+     *
+     * @return
+     */
+    public Set<File> getFiles() {
+        Set<File> files = new LinkedHashSet<>();
+        for (Item item : items) {
+            files.add(item.file);
+        }
+        return files;
+    }
+
+    /**
+     * The items of the expression, in order.
+     *
+     * @return
+     */
+    public List<Item> getItems() {
+        return Collections.unmodifiableList(items);
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.swing.AbstractListModel;
+import javax.swing.event.EventListenerList;
+import javax.swing.event.UndoableEditEvent;
+import javax.swing.event.UndoableEditListener;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
+
+/**
+ * List model of the arranged pages.
+ *
+ * Each page gets an int identifier from a page store when it is registered,
+ * and the arrangement is a persistent {@link PageSequence} of identifiers.
+ * Every change of the arrangement or of the rotations is posted to the
+ * {@link UndoableEditListener}s as an edit that keeps the sequences before
+ * and after it, which share almost all their nodes, so that an undo manager
+ * can hold hundreds of versions of a long arrangement.
+ *
+ * The identifiers of discarded pages are reused, so the page store is as
+ * large as the most pages the session ever held at once, undo history
+ * included, rather than growing with every page ever loaded.
+ *
+ * Registration is thread-safe, so background loaders can prepare their pages
+ * while the list is shown; like any Swing model, the arrangement itself must
+ * be changed on the event dispatch thread only.
+ *
+ * @author rnd
+ */
+public class PageListModel extends AbstractListModel<Page> {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Maximum number of removal events for a single removal; scattered
+     * removals beyond it are notified as a change of the tail of the list.
+     */
+    private static final int MAX_REMOVAL_EVENTS = 8;
+
+    private final Object storeLock = new Object();
+    private volatile Page[] store = new Page[INITIAL_CAPACITY];
+    private int nextId;
+    // Identifiers of the discarded pages, to be handed out again
+    private int[] freeIds = new int[INITIAL_CAPACITY];
+    private int freeCount;
+    private PageSequence sequence = PageSequence.EMPTY;
+    private final EventListenerList undoListeners = new EventListenerList();
+    private Consumer<List<Page>> discardListener = pages -> {
+    };
+
+    /**
+     * A change of the arrangement: the pages it added or removed are
+     * discarded for good when the edit dies while they are out of the
+     * arrangement.
+     */
+    private class SequenceEdit extends AbstractUndoableEdit {
+
+        private final String name;
+        private final PageSequence before;
+        private PageSequence after;
+        private final List<Page> added;
+        private final List<Page> removed;
+
+        SequenceEdit(String name, PageSequence before, PageSequence after, List<Page> added, List<Page> removed) {
+            this.name = name;
+            this.before = before;
+            this.after = after;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        @Override
+        public String getPresentationName() {
+            return name;
+        }
+
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            setSequence(before);
+        }
+
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            setSequence(after);
+        }
+
+        @Override
+        public boolean addEdit(UndoableEdit edit) {
+            // Consecutive additions, such as the chunks of a loader, are
+            // undone together
+            if (canUndo() && removed.isEmpty() && !added.isEmpty() && edit instanceof SequenceEdit) {
+                SequenceEdit next = (SequenceEdit) edit;
+                if (next.removed.isEmpty() && !next.added.isEmpty() && next.before == after) {
+                    after = next.after;
+                    added.addAll(next.added);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void die() {
+            discard(canUndo() ? removed : added);
+            super.die();
+        }
+    }
+
+    /**
+     * A rotation of some pages.
+     */
+    private class RotationEdit extends AbstractUndoableEdit {
+
+        private final int[] ids;
+        private final int degrees;
+
+        RotationEdit(int[] ids, int degrees) {
+            this.ids = ids;
+            this.degrees = degrees;
+        }
+
+        @Override
+        public String getPresentationName() {
+            return "Rotation";
+        }
+
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            rotateIds(ids, -degrees);
+        }
+
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            rotateIds(ids, degrees);
+        }
+    }
+
+    /**
+     * Give each page that has none an identifier in the page store, reusing
+     * the ones of discarded pages first. It can be called from any thread.
+     *
+     * @param pages
+     */
+    public void register(List<Page> pages) {
+        synchronized (storeLock) {
+            Page[] current = store;
+            int needed = nextId + Math.max(0, pages.size() - freeCount);
+            if (needed > current.length) {
+                current = Arrays.copyOf(current, Math.max(current.length * 2, needed));
+            }
+            for (Page page : pages) {
+                if (page.id < 0) {
+                    page.id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+                }
+                current[page.id] = page;
+            }
+            store = current;
+        }
+    }
+
+    /**
+     * The page with the specified identifier, or null if it was discarded.
+     *
+     * @param id
+     * @return
+     */
+    public Page getPage(int id) {
+        return store[id];
+    }
+
+    /**
+     * Set who is told about the pages that left the arrangement for good,
+     * that is when no undo can bring them back, so that their resources can
+     * be released.
+     *
+     * @param listener
+     */
+    public void setDiscardListener(Consumer<List<Page>> listener) {
+        discardListener = listener;
+    }
+
+    /**
+     * Add a listener for the undoable edits.
+     *
+     * @param listener
+     */
+    public void addUndoableEditListener(UndoableEditListener listener) {
+        undoListeners.add(UndoableEditListener.class, listener);
+    }
+
+    /**
+     * Remove a listener for the undoable edits.
+     *
+     * @param listener
+     */
+    public void removeUndoableEditListener(UndoableEditListener listener) {
+        undoListeners.remove(UndoableEditListener.class, listener);
+    }
+
+    @Override
+    public int getSize() {
+        return sequence.size();
+    }
+
+    @Override
+    public Page getElementAt(int index) {
+        return store[sequence.get(index)];
+    }
+
+    /**
+     * The arranged pages, in order.
+     *
+     * @return
+     */
+    public List<Page> getPages() {
+        Page[] current = store;
+        int[] ids = sequence.toArray();
+        List<Page> pages = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            pages.add(current[id]);
+        }
+        return pages;
+    }
+
+    /**
+     * Add pages at the end of the list.
+     *
+     * @param pages
+     */
+    public void add(List<Page> pages) {
+        insert(getSize(), pages);
+    }
+
+    /**
+     * Insert pages at the specified position, registering them if needed.
+     *
+     * @param index
+     * @param pages
+     */
+    public void insert(int index, List<Page> pages) {
+        if (pages.isEmpty()) {
+            return;
+        }
+        register(pages);
+        int[] ids = new int[pages.size()];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = pages.get(i).id;
+        }
+        PageSequence before = sequence;
+        sequence = sequence.insert(index, ids);
+        fireIntervalAdded(this, index, index + ids.length - 1);
+        postEdit(new SequenceEdit("Addition", before, sequence, new ArrayList<>(pages), Collections.emptyList()));
+    }
+
+    /**
+     * Move pages so that they are adjacent, in their current order, at the
+     * specified insertion point. The pages need not be adjacent before the
+     * move; the cost depends on the number of moved runs rather than on the
+     * length of the list, and a single change event covers the whole move.
+     *
+     * @param indices positions of the pages to move, in ascending order
+     * @param to insertion point, as a position in the list before the move
+     * @return the new position of the first moved page
+     */
+    public int move(int[] indices, int to) {
+        int target = PageSequence.movedTarget(indices, to);
+        if (indices.length == 0
+                || (target == indices[0] && indices[indices.length - 1] - indices[0] == indices.length - 1)) {
+            // Dropping an interval where it already is changes nothing
+            return target;
+        }
+        PageSequence before = sequence;
+        sequence = sequence.move(indices, to);
+        int first = Math.min(indices[0], target);
+        int last = Math.max(indices[indices.length - 1], target + indices.length - 1);
+        fireContentsChanged(this, first, last);
+        postEdit(new SequenceEdit("Move", before, sequence, Collections.emptyList(), Collections.emptyList()));
+        return target;
+    }
+
+    /**
+     * Remove pages from the list. They stay in the page store until the edit
+     * that removed them dies.
+     *
+     * @param indices positions of the pages to remove, in ascending order
+     * @return the removed pages
+     */
+    public List<Page> remove(int[] indices) {
+        List<Page> removed = new ArrayList<>(indices.length);
+        if (indices.length == 0) {
+            return removed;
+        }
+        for (int index : indices) {
+            removed.add(getElementAt(index));
+        }
+        PageSequence before = sequence;
+        sequence = sequence.remove(indices);
+        int oldSize = before.size();
+        int size = sequence.size();
+        int runs = 1;
+        for (int k = 1; k < indices.length; ++k) {
+            if (indices[k - 1] != indices[k] - 1) {
+                ++runs;
+            }
+        }
+        if (runs > MAX_REMOVAL_EVENTS) {
+            // Everything from the first removed position on has changed,
+            // and the list is shorter
+            fireIntervalRemoved(this, size, oldSize - 1);
+            if (indices[0] < size) {
+                fireContentsChanged(this, indices[0], size - 1);
+            }
+        } else {
+            // One event for each run of adjacent positions, from the last one
+            // so that the positions of the earlier runs are still valid
+            int runEnd = indices.length - 1;
+            for (int k = indices.length - 1; k >= 0; --k) {
+                if (k == 0 || indices[k - 1] != indices[k] - 1) {
+                    fireIntervalRemoved(this, indices[k], indices[runEnd]);
+                    runEnd = k - 1;
+                }
+            }
+        }
+        postEdit(new SequenceEdit("Removal", before, sequence, Collections.emptyList(), removed));
+        return removed;
+    }
+
+    /**
+     * Rotate the pages at the specified positions.
+     *
+     * @param indices positions of the pages to rotate
+     * @param degrees
+     */
+    public void rotate(int[] indices, int degrees) {
+        if (indices.length == 0) {
+            return;
+        }
+        int[] ids = new int[indices.length];
+        for (int i = 0; i < indices.length; ++i) {
+            ids[i] = sequence.get(indices[i]);
+        }
+        rotateIds(ids, degrees);
+        postEdit(new RotationEdit(ids, degrees));
+    }
+
+    /**
+     * Discard pages for good, such as the pages whose loading was cancelled
+     * before they were added, telling the discard listener. Their
+     * identifiers are freed for reuse: no sequence that can still be shown,
+     * by undo or redo, refers to them.
+     *
+     * @param pages
+     */
+    public void discard(List<Page> pages) {
+        if (pages.isEmpty()) {
+            return;
+        }
+        synchronized (storeLock) {
+            Page[] current = store;
+            for (Page page : pages) {
+                if (page.id >= 0 && current[page.id] == page) {
+                    current[page.id] = null;
+                    if (freeCount == freeIds.length) {
+                        freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+                    }
+                    freeIds[freeCount++] = page.id;
+                }
+                // Registering the page again gives it a new identifier
+                page.id = -1;
+            }
+        }
+        discardListener.accept(pages);
+    }
+
+    private void rotateIds(int[] ids, int degrees) {
+        Page[] current = store;
+        for (int id : ids) {
+            current[id].rotate(degrees);
+        }
+        if (getSize() > 0) {
+            fireContentsChanged(this, 0, getSize() - 1);
+        }
+    }
+
+    /**
+     * Replace the whole arrangement, as undo and redo do.
+     */
+    private void setSequence(PageSequence newSequence) {
+        int oldSize = sequence.size();
+        int size = newSequence.size();
+        sequence = newSequence;
+        if (size > oldSize) {
+            fireIntervalAdded(this, oldSize, size - 1);
+        } else if (size < oldSize) {
+            fireIntervalRemoved(this, size, oldSize - 1);
+        }
+        if (Math.min(size, oldSize) > 0) {
+            fireContentsChanged(this, 0, Math.min(size, oldSize) - 1);
+        }
+    }
+
+    private void postEdit(UndoableEdit edit) {
+        Object[] listeners = undoListeners.getListenerList();
+        if (listeners.length == 0) {
+            // Nobody keeps the edit, so the removed pages are gone for good
+            edit.die();
+            return;
+        }
+        UndoableEditEvent event = new UndoableEditEvent(this, edit);
+        for (int i = listeners.length - 2; i >= 0; i -= 2) {
+            ((UndoableEditListener) listeners[i + 1]).undoableEditHappened(event);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Immutable sequence of page identifiers.
+ *
+ * The sequence is a persistent implicit treap: every change returns a new
+ * sequence that shares all but O(log n) nodes with the old one, so that many
+ * versions of a long arrangement can be kept at once for undo. Positional
+ * lookups cost O(log n) too.
+ *
+ * @author rnd
+ */
+public final class PageSequence {
+
+    /**
+     * The empty sequence.
+     */
+    public static final PageSequence EMPTY = new PageSequence(null);
+
+    private static final class Node {
+
+        final int id;
+        final int priority;
+        final int size;
+        final Node left;
+        final Node right;
+
+        Node(int id, int priority, Node left, Node right) {
+            this.id = id;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.size = size(left) + size(right) + 1;
+        }
+
+        Node with(Node left, Node right) {
+            return left == this.left && right == this.right ? this : new Node(id, priority, left, right);
+        }
+    }
+
+    private final Node root;
+
+    private PageSequence(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Build a sequence in linear time.
+     *
+     * @param ids
+     * @return
+     */
+    public static PageSequence of(int[] ids) {
+        return new PageSequence(build(ids, 0, ids.length));
+    }
+
+    /**
+     * Number of identifiers in the sequence.
+     *
+     * @return
+     */
+    public int size() {
+        return size(root);
+    }
+
+    /**
+     * The identifier at the specified position.
+     *
+     * @param index
+     * @return
+     */
+    public int get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+        }
+        Node node = root;
+        while (true) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index == leftSize) {
+                return node.id;
+            } else {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * All the identifiers, in order.
+     *
+     * @return
+     */
+    public int[] toArray() {
+        int[] ids = new int[size()];
+        Deque<Node> stack = new ArrayDeque<>();
+        Node node = root;
+        int i = 0;
+        while (node != null || !stack.isEmpty()) {
+            while (node != null) {
+                stack.push(node);
+                node = node.left;
+            }
+            node = stack.pop();
+            ids[i++] = node.id;
+            node = node.right;
+        }
+        return ids;
+    }
+
+    /**
+     * Insert identifiers at the specified position.
+     *
+     * @param index
+     * @param ids
+     * @return the new sequence
+     */
+    public PageSequence insert(int index, int[] ids) {
+        Node[] parts = split(root, index);
+        return new PageSequence(merge(merge(parts[0], build(ids, 0, ids.length)), parts[1]));
+    }
+
+    /**
+     * Remove the identifiers at the specified positions.
+     *
+     * @param indices positions in ascending order
+     * @return the new sequence
+     */
+    public PageSequence remove(int[] indices) {
+        return new PageSequence(cut(indices)[0]);
+    }
+
+    /**
+     * Move the identifiers at the specified positions so that they are
+     * adjacent, in their current order, at an insertion point.
+     *
+     * @param indices positions in ascending order
+     * @param to insertion point, as a position before the move
+     * @return the new sequence
+     */
+    public PageSequence move(int[] indices, int to) {
+        Node[] parts = cut(indices);
+        Node[] kept = split(parts[0], movedTarget(indices, to));
+        return new PageSequence(merge(merge(kept[0], parts[1]), kept[1]));
+    }
+
+    /**
+     * Where the first identifier moved by {@link #move(int[], int)} ends up.
+     *
+     * @param indices positions in ascending order
+     * @param to insertion point, as a position before the move
+     * @return
+     */
+    public static int movedTarget(int[] indices, int to) {
+        int before = 0;
+        while (before < indices.length && indices[before] < to) {
+            ++before;
+        }
+        return to - before;
+    }
+
+    /**
+     * Separate the identifiers at the specified positions from the others.
+     * Each run of adjacent positions costs two splits; when there are so
+     * many runs that splitting would copy more nodes than the sequence has,
+     * both parts are rebuilt from scratch instead.
+     *
+     * @return the kept and the extracted nodes
+     */
+    private Node[] cut(int[] indices) {
+        int runs = 0;
+        for (int k = 0; k < indices.length; ++k) {
+            if (k == 0 || indices[k - 1] != indices[k] - 1) {
+                ++runs;
+            }
+        }
+        int n = size();
+        if ((long) runs * 2 * (32 - Integer.numberOfLeadingZeros(n)) > n) {
+            int[] ids = toArray();
+            int[] kept = new int[n - indices.length];
+            int[] extracted = new int[indices.length];
+            for (int i = 0, k = 0, r = 0; i < n; ++i) {
+                if (k < indices.length && indices[k] == i) {
+                    extracted[k++] = ids[i];
+                } else {
+                    kept[r++] = ids[i];
+                }
+            }
+            return new Node[]{build(kept, 0, kept.length), build(extracted, 0, extracted.length)};
+        }
+        // Cut the runs from the last one, so that the earlier positions
+        // still hold in what is left
+        Node rest = root;
+        Node kept = null;
+        Node extracted = null;
+        int runEnd = indices.length - 1;
+        for (int k = indices.length - 1; k >= 0; --k) {
+            if (k == 0 || indices[k - 1] != indices[k] - 1) {
+                Node[] tail = split(rest, indices[runEnd] + 1);
+                Node[] run = split(tail[0], indices[k]);
+                kept = merge(tail[1], kept);
+                extracted = merge(run[1], extracted);
+                rest = run[0];
+                runEnd = k - 1;
+            }
+        }
+        return new Node[]{merge(rest, kept), extracted};
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    /**
+     * Split a tree into the first count nodes and the others.
+     */
+    private static Node[] split(Node node, int count) {
+        if (node == null) {
+            return new Node[2];
+        }
+        int leftSize = size(node.left);
+        if (count <= leftSize) {
+            Node[] parts = split(node.left, count);
+            return new Node[]{parts[0], node.with(parts[1], node.right)};
+        } else {
+            Node[] parts = split(node.right, count - leftSize - 1);
+            return new Node[]{node.with(node.left, parts[0]), parts[1]};
+        }
+    }
+
+    private static Node merge(Node a, Node b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority >= b.priority) {
+            return a.with(a.left, merge(a.right, b));
+        } else {
+            return b.with(merge(a, b.left), b.right);
+        }
+    }
+
+    /**
+     * Build a treap from a range of identifiers in linear time, as the
+     * Cartesian tree of random priorities.
+     */
+    private static Node build(int[] ids, int from, int to) {
+        if (from >= to) {
+            return null;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int count = to - from;
+        int[] priorities = new int[count];
+        int[] lefts = new int[count];
+        int[] rights = new int[count];
+        int[] stack = new int[count];
+        int top = 0;
+        for (int i = 0; i < count; ++i) {
+            priorities[i] = random.nextInt();
+            lefts[i] = -1;
+            rights[i] = -1;
+            int last = -1;
+            while (top > 0 && priorities[stack[top - 1]] < priorities[i]) {
+                last = stack[--top];
+            }
+            if (top > 0) {
+                rights[stack[top - 1]] = i;
+            }
+            lefts[i] = last;
+            stack[top++] = i;
+        }
+        // The nodes are immutable, so the children must be created before
+        // their parent: walk the tree in pre-order, then create the nodes in
+        // reverse
+        Node[] nodes = new Node[count];
+        int rootIndex = stack[0];
+        int[] order = new int[count];
+        int visited = 0;
+        top = 0;
+        stack[top++] = rootIndex;
+        while (top > 0) {
+            int i = stack[--top];
+            order[visited++] = i;
+            if (lefts[i] >= 0) {
+                stack[top++] = lefts[i];
+            }
+            if (rights[i] >= 0) {
+                stack[top++] = rights[i];
+            }
+        }
+        for (int k = count - 1; k >= 0; --k) {
+            int i = order[k];
+            nodes[i] = new Node(ids[from + i], priorities[i],
+                    lefts[i] >= 0 ? nodes[lefts[i]] : null,
+                    rights[i] >= 0 ? nodes[rights[i]] : null);
+        }
+        return nodes[rootIndex];
+    }
+}
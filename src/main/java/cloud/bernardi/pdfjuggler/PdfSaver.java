@@ -0,0 +1,516 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSObjectKey;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdfwriter.COSWriter;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+/**
+ * Assemble a new PDF file from pages of other PDF files.
+ *
+ * The source documents come from the session {@link SourceRegistry}, so they
+ * are not parsed again, and they are never modified: each page is added to
+ * the target document as a shallow copy. The target document has a heap
+ * ceiling: the PDF objects that do not fit in it are buffered in temporary
+ * files, so that merging huge files takes a fixed amount of memory.
+ *
+ * When the pages are all the pages of a single source file, in their
+ * original order, and only their rotations changed, the target is written as
+ * an incremental update of the source instead: only the changed page objects
+ * are appended, either to the source itself or to a copy of it.
+ *
+ * @author rnd
+ */
+public class PdfSaver {
+
+    /**
+     * Default heap ceiling of the target document, in megabytes.
+     */
+    public static final int DEFAULT_MEMORY_MB = 64;
+
+    /**
+     * Receives the save progress.
+     */
+    public interface Listener {
+
+        /**
+         * Called after each page is added to the target document.
+         *
+         * @param count number of pages added so far
+         * @param total number of pages to add
+         */
+        void pageAdded(int count, int total);
+
+        /**
+         * Called on the saving thread when the rotations were written into
+         * the source file itself. The pages keep their old source rotations:
+         * whoever owns them records the new ones on its own thread, with
+         * {@link Session#updateSourceRotations(List, int[])}.
+         *
+         * @param pages
+         * @param rotations rotation now stored in the source for each page
+         */
+        default void sourceUpdated(List<Page> pages, int[] rotations) {
+        }
+    }
+
+    /**
+     * Entries of an annotation that refer to other annotations or fields.
+     */
+    private static final COSName[] ANNOTATION_LINKS = {COSName.getPDFName("Popup"), COSName.PARENT, COSName.getPDFName("IRT")};
+
+    private final SourceRegistry registry;
+    private final long maxMainMemoryBytes;
+
+    /**
+     * Create a new saver.
+     *
+     * @param registry where the source documents are taken from
+     * @param maxMainMemoryBytes heap ceiling of the target document
+     */
+    public PdfSaver(SourceRegistry registry, long maxMainMemoryBytes) {
+        this.registry = registry;
+        this.maxMainMemoryBytes = maxMainMemoryBytes;
+    }
+
+    /**
+     * Save the specified pages, in order, to a new PDF file.
+     *
+     * @param pages
+     * @param file
+     * @param listener
+     * @throws IOException
+     */
+    public void save(List<Page> pages, File file, Listener listener) throws IOException {
+        if (isRotationOnly(pages)) {
+            long start = Metrics.SAVE_UPDATE.start();
+            boolean saved = saveRotations(pages, file, listener);
+            Metrics.SAVE_UPDATE.stop(start);
+            if (saved) {
+                return;
+            }
+        }
+        Map<File, SourceRegistry.Handle> handles = new LinkedHashMap<>();
+        List<SourceRegistry.Handle> locked = new ArrayList<>();
+        try {
+            for (Page page : pages) {
+                File source = page.file.getAbsoluteFile();
+                if (!handles.containsKey(source)) {
+                    handles.put(source, registry.acquire(source));
+                }
+            }
+            // The sources stay locked until the target is written, since the
+            // page contents are read from them only then; a consistent
+            // locking order prevents deadlocks with concurrent saves, which
+            // run in parallel only as far as the registry allows more than
+            // one parse of their common sources.
+            List<SourceRegistry.Handle> sorted = new ArrayList<>(handles.values());
+            sorted.sort(Comparator.comparing(handle -> handle.getFile().getAbsolutePath()));
+            Map<SourceRegistry.Handle, List<PDPage>> sourcePages = new HashMap<>();
+            for (SourceRegistry.Handle handle : sorted) {
+                handle.lock();
+                locked.add(handle);
+                sourcePages.put(handle, listPages(handle.getDocument()));
+            }
+            try (PDDocument newDoc = new PDDocument(MemoryUsageSetting.setupMixed(maxMainMemoryBytes))) {
+                int count = 0;
+                for (Page page : pages) {
+                    long start = Metrics.SAVE_COPY.start();
+                    PDPage sourcePage = sourcePages.get(handles.get(page.file.getAbsoluteFile())).get(page.index);
+                    newDoc.addPage(copyPage(sourcePage, page.rotation));
+                    Metrics.SAVE_COPY.stop(start);
+                    listener.pageAdded(++count, pages.size());
+                }
+                long start = Metrics.SAVE_WRITE.start();
+                newDoc.save(file);
+                Metrics.SAVE_WRITE.stop(start);
+            }
+        } finally {
+            for (SourceRegistry.Handle handle : locked) {
+                handle.unlock();
+            }
+            for (SourceRegistry.Handle handle : handles.values()) {
+                handle.close();
+            }
+        }
+    }
+
+    /**
+     * Whether the pages are all the pages of a single, unencrypted source
+     * file, in their original order.
+     */
+    private boolean isRotationOnly(List<Page> pages) throws IOException {
+        if (pages.isEmpty()) {
+            return false;
+        }
+        File source = pages.get(0).file;
+        for (int i = 0; i < pages.size(); ++i) {
+            Page page = pages.get(i);
+            if (page.index != i || !page.file.equals(source)) {
+                return false;
+            }
+        }
+        try (SourceRegistry.Handle handle = registry.acquire(source)) {
+            handle.lock();
+            try {
+                PDDocument document = handle.getDocument();
+                return !document.isEncrypted() && document.getNumberOfPages() == pages.size();
+            } finally {
+                handle.unlock();
+            }
+        }
+    }
+
+    /**
+     * Write the rotations of the pages as an incremental update of their
+     * source file, appended either to the source itself or to a copy of it.
+     * The update is written by hand from the shared parse of the source,
+     * which is left untouched: it holds the changed page objects and a new
+     * cross-reference section that points back to the previous one, so the
+     * rest of the source is never read.
+     *
+     * @return false if the source cannot be updated this way, before any
+     * file is touched
+     */
+    private boolean saveRotations(List<Page> pages, File file, Listener listener) throws IOException {
+        File source = pages.get(0).file;
+        long sourceLength = source.length();
+        int[] rotations = new int[pages.size()];
+        ByteArrayOutputStream update = new ByteArrayOutputStream();
+        try (SourceRegistry.Handle handle = registry.acquire(source)) {
+            handle.lock();
+            try {
+                if (!writeRotations(handle.getDocument(), pages, rotations, sourceLength, update, listener)) {
+                    return false;
+                }
+            } finally {
+                handle.unlock();
+            }
+        }
+        boolean inPlace = source.getAbsoluteFile().equals(file.getAbsoluteFile());
+        if (!inPlace) {
+            Files.copy(source.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (update.size() > 0) {
+            try (OutputStream output = new FileOutputStream(file, true)) {
+                update.writeTo(output);
+            }
+            if (inPlace) {
+                // The parses of the source do not know about the update
+                registry.refresh(source);
+                listener.sourceUpdated(pages, rotations);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the update of the changed rotations, if any, as it goes after
+     * the specified number of bytes of the source.
+     *
+     * @param rotations where the saved rotation of each page is stored
+     * @return false if the page tree or the cross-reference data of the
+     * source cannot be updated by hand
+     */
+    private static boolean writeRotations(PDDocument document, List<Page> pages, int[] rotations,
+            long offset, ByteArrayOutputStream update, Listener listener) throws IOException {
+        COSDocument cosDocument = document.getDocument();
+        COSDictionary trailer = cosDocument.getTrailer();
+        long startXref = cosDocument.getStartXref();
+        if (trailer == null || startXref <= 0 || !trailer.containsKey(COSName.SIZE)) {
+            return false;
+        }
+        List<COSObject> pageObjects = new ArrayList<>(pages.size());
+        if (!listPageObjects(document.getDocumentCatalog().getCOSObject().getDictionaryObject(COSName.PAGES),
+                pageObjects, new HashSet<>()) || pageObjects.size() != pages.size()) {
+            return false;
+        }
+        // Object number, generation and offset of each object written
+        Map<Long, long[]> written = new TreeMap<>();
+        update.write('\n');
+        int count = 0;
+        for (int i = 0; i < pages.size(); ++i) {
+            COSObject pageObject = pageObjects.get(i);
+            COSDictionary dict = (COSDictionary) pageObject.getObject();
+            rotations[i] = pages.get(i).rotation;
+            if (rotations[i] != new PDPage(dict).getRotation()) {
+                if (written.containsKey(pageObject.getObjectNumber())) {
+                    return false;
+                }
+                written.put(pageObject.getObjectNumber(),
+                        new long[]{pageObject.getGenerationNumber(), offset + update.size()});
+                write(update, pageObject.getObjectNumber() + " " + pageObject.getGenerationNumber() + " obj\n");
+                if (!writeDirect(dict, COSInteger.get(rotations[i]), update)) {
+                    return false;
+                }
+                write(update, "\nendobj\n");
+            }
+            listener.pageAdded(++count, pages.size());
+        }
+        if (written.isEmpty()) {
+            update.reset();
+            return true;
+        }
+        // PDFBox keeps the /Size of the oldest trailer, which is too low if
+        // later updates added objects
+        long size = trailer.getLong(COSName.SIZE);
+        for (COSObjectKey key : cosDocument.getXrefTable().keySet()) {
+            size = Math.max(size, key.getNumber() + 1);
+        }
+        long xrefOffset = offset + update.size();
+        COSDictionary xrefDict = new COSDictionary();
+        for (COSName key : new COSName[]{COSName.ROOT, COSName.INFO, COSName.ID}) {
+            if (trailer.containsKey(key)) {
+                xrefDict.setItem(key, trailer.getItem(key));
+            }
+        }
+        xrefDict.setLong(COSName.PREV, startXref);
+        if (cosDocument.isXRefStream()) {
+            // Same kind of cross-reference data as the source; a stream
+            // lists itself, as a new object
+            written.put(size, new long[]{0, xrefOffset});
+            ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            COSArray index = new COSArray();
+            for (Map.Entry<Long, long[]> entry : written.entrySet()) {
+                index.add(COSInteger.get(entry.getKey()));
+                index.add(COSInteger.ONE);
+                entries.write(1);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    entries.write((int) (entry.getValue()[1] >>> shift));
+                }
+                entries.write((int) (entry.getValue()[0] >>> 8));
+                entries.write((int) entry.getValue()[0]);
+            }
+            COSArray widths = new COSArray();
+            widths.add(COSInteger.ONE);
+            widths.add(COSInteger.get(8));
+            widths.add(COSInteger.get(2));
+            xrefDict.setItem(COSName.TYPE, COSName.XREF);
+            xrefDict.setLong(COSName.SIZE, size + 1);
+            xrefDict.setItem(COSName.W, widths);
+            xrefDict.setItem(COSName.INDEX, index);
+            xrefDict.setInt(COSName.LENGTH, entries.size());
+            write(update, size + " 0 obj\n");
+            writeDirect(xrefDict, null, update);
+            write(update, "\nstream\n");
+            entries.writeTo(update);
+            write(update, "\nendstream\nendobj\n");
+        } else {
+            write(update, "xref\n");
+            for (Map.Entry<Long, long[]> entry : written.entrySet()) {
+                write(update, String.format("%d 1\n%010d %05d n\r\n", entry.getKey(), entry.getValue()[1], entry.getValue()[0]));
+            }
+            xrefDict.setLong(COSName.SIZE, size);
+            write(update, "trailer\n");
+            writeDirect(xrefDict, null, update);
+            write(update, "\n");
+        }
+        write(update, "startxref\n" + xrefOffset + "\n%%EOF\n");
+        return true;
+    }
+
+    /**
+     * The indirect page objects under a node of the page tree, in order.
+     *
+     * @return false if the page tree is not made of indirect objects, as the
+     * PDF specification requires
+     */
+    private static boolean listPageObjects(COSBase node, List<COSObject> pageObjects, Set<COSBase> visited) {
+        if (!(node instanceof COSDictionary) || !visited.add(node)) {
+            return false;
+        }
+        COSBase kids = ((COSDictionary) node).getDictionaryObject(COSName.KIDS);
+        if (!(kids instanceof COSArray)) {
+            return false;
+        }
+        for (COSBase kid : (COSArray) kids) {
+            if (!(kid instanceof COSObject) || !(((COSObject) kid).getObject() instanceof COSDictionary)) {
+                return false;
+            }
+            COSDictionary dict = (COSDictionary) ((COSObject) kid).getObject();
+            // Same test as PDPageTree
+            if (dict.getCOSName(COSName.TYPE) == COSName.PAGES || dict.containsKey(COSName.KIDS)) {
+                if (!listPageObjects(dict, pageObjects, visited)) {
+                    return false;
+                }
+            } else {
+                pageObjects.add((COSObject) kid);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write an object the way it is stored in the file: the indirect objects
+     * it refers to are written as references.
+     *
+     * @param rotation replaces the /Rotate entry of a dictionary, if not null
+     * @return false if the object contains a stream, which can only be an
+     * indirect object
+     */
+    private static boolean writeDirect(COSBase object, COSInteger rotation, OutputStream output) throws IOException {
+        if (object instanceof COSObject) {
+            COSObject reference = (COSObject) object;
+            write(output, reference.getObjectNumber() + " " + reference.getGenerationNumber() + " R");
+        } else if (object instanceof COSStream) {
+            return false;
+        } else if (object instanceof COSDictionary) {
+            output.write(COSWriter.DICT_OPEN);
+            for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) object).entrySet()) {
+                if (rotation == null || !COSName.ROTATE.equals(entry.getKey())) {
+                    entry.getKey().writePDF(output);
+                    output.write(' ');
+                    if (!writeDirect(entry.getValue(), null, output)) {
+                        return false;
+                    }
+                    output.write('\n');
+                }
+            }
+            if (rotation != null) {
+                COSName.ROTATE.writePDF(output);
+                output.write(' ');
+                rotation.writePDF(output);
+                output.write('\n');
+            }
+            output.write(COSWriter.DICT_CLOSE);
+        } else if (object instanceof COSArray) {
+            output.write(COSWriter.ARRAY_OPEN);
+            for (COSBase item : (COSArray) object) {
+                output.write(' ');
+                if (!writeDirect(item, null, output)) {
+                    return false;
+                }
+            }
+            output.write(COSWriter.ARRAY_CLOSE);
+        } else if (object instanceof COSString) {
+            COSWriter.writeString((COSString) object, output);
+        } else if (object instanceof COSName) {
+            ((COSName) object).writePDF(output);
+        } else if (object instanceof COSInteger) {
+            ((COSInteger) object).writePDF(output);
+        } else if (object instanceof COSFloat) {
+            ((COSFloat) object).writePDF(output);
+        } else if (object instanceof COSBoolean) {
+            ((COSBoolean) object).writePDF(output);
+        } else if (object == null || object instanceof COSNull) {
+            COSNull.NULL.writePDF(output);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static void write(OutputStream output, String text) throws IOException {
+        output.write(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * The pages of a document, by index, in a single walk of the page tree:
+     * looking each page up by index would walk the tree from the root every
+     * time, which is quadratic in the length of the document.
+     */
+    private static List<PDPage> listPages(PDDocument document) {
+        List<PDPage> pages = new ArrayList<>(document.getNumberOfPages());
+        for (PDPage page : document.getPages()) {
+            pages.add(page);
+        }
+        return pages;
+    }
+
+    /**
+     * Make a shallow copy of a page, with its inherited attributes resolved,
+     * so that adding it to another document leaves the source untouched.
+     */
+    private static PDPage copyPage(PDPage sourcePage, int rotation) {
+        COSDictionary dict = new COSDictionary(sourcePage.getCOSObject());
+        dict.removeItem(COSName.PARENT);
+        PDPage copy = new PDPage(dict);
+        copy.setMediaBox(sourcePage.getMediaBox());
+        copy.setCropBox(sourcePage.getCropBox());
+        copy.setResources(sourcePage.getResources());
+        copy.setRotation(rotation);
+        // The annotations point back to their page: without new copies they
+        // would drag the source page, and its whole page tree, along
+        COSBase annots = dict.getDictionaryObject(COSName.ANNOTS);
+        if (annots instanceof COSArray) {
+            COSArray sourceAnnots = (COSArray) annots;
+            COSArray copyAnnots = new COSArray();
+            Map<COSBase, COSDictionary> copies = new HashMap<>();
+            for (int i = 0; i < sourceAnnots.size(); ++i) {
+                COSBase annot = sourceAnnots.getObject(i);
+                if (annot instanceof COSDictionary) {
+                    COSDictionary annotCopy = new COSDictionary((COSDictionary) annot);
+                    if (annotCopy.containsKey(COSName.P)) {
+                        annotCopy.setItem(COSName.P, dict);
+                    }
+                    copies.put(annot, annotCopy);
+                    copyAnnots.add(annotCopy);
+                }
+            }
+            // The annotations linked to each other (a popup and its parent,
+            // a reply and the annotation it answers) are linked to the
+            // copies; links to anything else, such as the form fields of
+            // the widgets, would drag the source along as well
+            for (COSDictionary annotCopy : copies.values()) {
+                for (COSName link : ANNOTATION_LINKS) {
+                    if (annotCopy.containsKey(link)) {
+                        COSDictionary target = copies.get(annotCopy.getDictionaryObject(link));
+                        if (target != null) {
+                            annotCopy.setItem(link, target);
+                        } else {
+                            annotCopy.removeItem(link);
+                        }
+                    }
+                }
+            }
+            dict.setItem(COSName.ANNOTS, copyAnnots);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.swing.undo.UndoManager;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+
+/**
+ * The pages being arranged, with the source files they come from and the
+ * undo history: what the main window edits, without the window.
+ *
+ * It ties the lifetime of the source documents to the pages: a source file
+ * stays open while some page of it is in the arrangement or can be brought
+ * back by an undo, and is closed as soon as neither holds. Like the page
+ * list, the arrangement must be changed from a single thread, the event
+ * dispatch thread when the list is shown.
+ *
+ * @author rnd
+ */
+public class Session {
+
+    private final PageListModel model;
+    private final SourceRegistry registry = new SourceRegistry(MemoryUsageSetting.setupTempFileOnly());
+    private final UndoManager undoManager = new UndoManager();
+    private final long saveMemory;
+    private Consumer<List<Page>> discardListener = pages -> {
+    };
+    private Runnable undoListener = () -> {
+    };
+
+    /**
+     * Create a new session.
+     *
+     * @param model the page list the session arranges
+     * @param undoLevels maximum number of edits that can be undone
+     * @param saveMemory heap ceiling of the documents being saved, in bytes
+     */
+    public Session(PageListModel model, int undoLevels, long saveMemory) {
+        this.model = model;
+        this.saveMemory = saveMemory;
+        undoManager.setLimit(undoLevels);
+        model.addUndoableEditListener(evt -> {
+            undoManager.addEdit(evt.getEdit());
+            undoListener.run();
+        });
+        model.setDiscardListener(pages -> {
+            discardListener.accept(pages);
+            registry.release(pages);
+        });
+    }
+
+    /**
+     * The arranged pages.
+     *
+     * @return
+     */
+    public PageListModel getModel() {
+        return model;
+    }
+
+    /**
+     * The source files of the pages.
+     *
+     * @return
+     */
+    public SourceRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Set who is told about the pages that left the session for good, before
+     * their source references are released.
+     *
+     * @param listener
+     */
+    public void setDiscardListener(Consumer<List<Page>> listener) {
+        discardListener = listener;
+    }
+
+    /**
+     * Set who is told when an edit is added to the undo history.
+     *
+     * @param listener
+     */
+    public void setUndoListener(Runnable listener) {
+        undoListener = listener;
+    }
+
+    /**
+     * Read the pages of a file and register them in the page list, ready to
+     * be added. It can be called from any thread.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public List<Page> readPages(File file) throws IOException {
+        List<Page> pages = registry.readPages(file);
+        model.register(pages);
+        return pages;
+    }
+
+    /**
+     * Read the pages of a file and add them at the end of the list.
+     *
+     * @param file
+     * @return the added pages
+     * @throws IOException
+     */
+    public List<Page> addFile(File file) throws IOException {
+        List<Page> pages = readPages(file);
+        model.add(pages);
+        return pages;
+    }
+
+    /**
+     * Move pages next to each other at an insertion point.
+     *
+     * @param indices positions of the pages to move, in ascending order
+     * @param to insertion point, as a position in the list before the move
+     * @return the new position of the first moved page
+     * @see PageListModel#move(int[], int)
+     */
+    public int move(int[] indices, int to) {
+        return model.move(indices, to);
+    }
+
+    /**
+     * Rotate pages.
+     *
+     * @param indices positions of the pages to rotate
+     * @param degrees
+     */
+    public void rotate(int[] indices, int degrees) {
+        model.rotate(indices, degrees);
+    }
+
+    /**
+     * Remove pages; they are released when no undo can bring them back.
+     *
+     * @param indices positions of the pages to remove, in ascending order
+     */
+    public void remove(int[] indices) {
+        model.remove(indices);
+    }
+
+    /**
+     * Remove all the pages.
+     */
+    public void removeAll() {
+        int[] all = new int[model.getSize()];
+        for (int i = 0; i < all.length; ++i) {
+            all[i] = i;
+        }
+        model.remove(all);
+    }
+
+    /**
+     * The undo history.
+     *
+     * @return
+     */
+    public UndoManager getUndoManager() {
+        return undoManager;
+    }
+
+    /**
+     * Undo the last edit, if any.
+     */
+    public void undo() {
+        if (undoManager.canUndo()) {
+            undoManager.undo();
+        }
+    }
+
+    /**
+     * Redo the last undone edit, if any.
+     */
+    public void redo() {
+        if (undoManager.canRedo()) {
+            undoManager.redo();
+        }
+    }
+
+    /**
+     * Forget the undo history, releasing the pages that only the history
+     * kept.
+     */
+    public void discardHistory() {
+        undoManager.discardAllEdits();
+        undoListener.run();
+    }
+
+    /**
+     * Save pages, in order, to a new PDF file. It can be called from any
+     * thread, with a snapshot of the arrangement taken on the thread that
+     * changes it.
+     *
+     * @param pages
+     * @param file
+     * @param listener
+     * @throws IOException
+     */
+    public void save(List<Page> pages, File file, PdfSaver.Listener listener) throws IOException {
+        new PdfSaver(registry, saveMemory).save(pages, file, listener);
+    }
+
+    /**
+     * Save the arranged pages to a new PDF file.
+     *
+     * @param file
+     * @param listener
+     * @throws IOException
+     */
+    public void save(File file, PdfSaver.Listener listener) throws IOException {
+        save(model.getPages(), file, listener);
+    }
+
+    /**
+     * Record the rotations that a save wrote into the source file of the
+     * pages, as reported by {@link PdfSaver.Listener#sourceUpdated}. Like
+     * the other changes, it must be called on the thread that changes the
+     * arrangement.
+     *
+     * @param pages
+     * @param rotations rotation now stored in the source for each page
+     */
+    public void updateSourceRotations(List<Page> pages, int[] rotations) {
+        for (int i = 0; i < rotations.length; ++i) {
+            pages.get(i).sourceRotation = rotations[i];
+        }
+    }
+
+    /**
+     * Close all the source documents.
+     */
+    public void close() {
+        registry.closeAll();
+    }
+}
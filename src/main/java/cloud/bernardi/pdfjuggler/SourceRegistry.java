@@ -0,0 +1,509 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageTree;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+/**
+ * Session-wide registry of the parsed source PDF files.
+ *
+ * Each file is parsed once and shared by everyone that needs it, unless
+ * several threads need it at the same time (see below): the document stays
+ * open as long as someone holds a handle to it or some pages
+ * of the session refer to it, and it is closed when the last reference is
+ * released. PDFBox documents are not thread-safe, so the holders of a handle
+ * must lock it while they use the document.
+ *
+ * Locking a handle checks out one of the parses of the file for exclusive
+ * use. By default there is a single parse, so the holders of a file take
+ * turns; when several threads write outputs from the same files at the same
+ * time, the registry can be allowed more parses of each file, opened only
+ * when all the others are in use.
+ *
+ * @author rnd
+ */
+public class SourceRegistry {
+
+    private final Map<File, Source> sources = new HashMap<>();
+    private final MemoryUsageSetting memoryUsage;
+    private final List<Consumer<File>> closeListeners = new CopyOnWriteArrayList<>();
+    private final List<Integer> parseAllowances = new ArrayList<>();
+    private volatile int maxParses = 1;
+
+    /**
+     * A source file, with its parses and its reference count.
+     */
+    private static class Source {
+
+        private final File file;
+        private final List<PDDocument> idle = new ArrayList<>();
+        private final Set<PDDocument> busy = new HashSet<>();
+        private final Set<PDDocument> stale = new HashSet<>();
+        private List<Page> pages;
+        private int refreshes;
+        private int parses;
+        private int references;
+        private boolean closed;
+
+        Source(File file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * A reference to a parsed source file, released when closed.
+     */
+    public class Handle implements Closeable {
+
+        private final Source source;
+        private PDDocument document;
+        private boolean closed;
+
+        private Handle(Source source) {
+            this.source = source;
+        }
+
+        /**
+         * The source file.
+         *
+         * @return
+         */
+        public File getFile() {
+            return source.file;
+        }
+
+        /**
+         * The parsed document; it must be used only while the handle is
+         * locked.
+         *
+         * @return
+         */
+        public PDDocument getDocument() {
+            return document;
+        }
+
+        /**
+         * Get exclusive access to a parse of the file, waiting for one if
+         * all the allowed parses are in use.
+         *
+         * @throws IOException if the file cannot be parsed
+         */
+        public void lock() throws IOException {
+            document = checkOut(source, maxParses);
+        }
+
+        /**
+         * Release the exclusive access to the document.
+         */
+        public void unlock() {
+            checkIn(source, document);
+            document = null;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                release(source, 1);
+            }
+        }
+    }
+
+    /**
+     * Create a new registry.
+     *
+     * @param memoryUsage memory setting for the parsed documents
+     */
+    public SourceRegistry(MemoryUsageSetting memoryUsage) {
+        this.memoryUsage = memoryUsage;
+    }
+
+    /**
+     * Allow up to the specified number of parses of each file in use at the
+     * same time, for instance one for each thread writing outputs, until
+     * {@link #disallowParses(int)} is called with the same count. The
+     * largest allowance in force applies.
+     *
+     * @param count
+     */
+    public void allowParses(int count) {
+        synchronized (parseAllowances) {
+            parseAllowances.add(count);
+            updateMaxParses();
+        }
+    }
+
+    /**
+     * Withdraw an allowance given with {@link #allowParses(int)}: the idle
+     * parses beyond the limit that applies afterwards are closed now, the
+     * ones in use as soon as they are given back.
+     *
+     * @param count
+     */
+    public void disallowParses(int count) {
+        synchronized (parseAllowances) {
+            parseAllowances.remove(Integer.valueOf(count));
+            updateMaxParses();
+        }
+        List<Source> all;
+        synchronized (this) {
+            all = new ArrayList<>(sources.values());
+        }
+        for (Source source : all) {
+            List<PDDocument> extra = new ArrayList<>();
+            synchronized (source) {
+                while (source.parses > maxParses && !source.idle.isEmpty()) {
+                    extra.add(source.idle.remove(source.idle.size() - 1));
+                    --source.parses;
+                }
+            }
+            for (PDDocument document : extra) {
+                close(document);
+            }
+        }
+    }
+
+    private void updateMaxParses() {
+        int max = 1;
+        for (int count : parseAllowances) {
+            max = Math.max(max, count);
+        }
+        maxParses = max;
+    }
+
+    /**
+     * Add someone to be told when a file is closed or refreshed, with its
+     * absolute path, for instance to close other copies of it. The listener is called on
+     * the thread that released the file.
+     *
+     * @param listener
+     */
+    public void addCloseListener(Consumer<File> listener) {
+        closeListeners.add(listener);
+    }
+
+    /**
+     * Get a handle to a source file, parsing it if nobody is using it yet.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public Handle acquire(File file) throws IOException {
+        Source source;
+        synchronized (this) {
+            source = sources.computeIfAbsent(file.getAbsoluteFile(), Source::new);
+            ++source.references;
+        }
+        try {
+            // Concurrent first users wait for a single parse
+            if (getParses(source) == 0) {
+                checkIn(source, checkOut(source, 1));
+            }
+        } catch (IOException ex) {
+            release(source, 1);
+            throw ex;
+        }
+        return new Handle(source);
+    }
+
+    /**
+     * Read the page tree of a PDF file: the MediaBox and the rotation of
+     * each page, without touching the page contents. Each page adds a
+     * reference to the parsed file, to be released when the page is
+     * discarded.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public List<Page> readPages(File file) throws IOException {
+        try (Handle handle = acquire(file)) {
+            List<Page> sourcePages = getPages(handle);
+            List<Page> pages = new ArrayList<>(sourcePages.size());
+            for (Page source : sourcePages) {
+                pages.add(new Page(source.index, file, source.width, source.height, source.sourceRotation));
+            }
+            retain(handle, pages.size());
+            return pages;
+        }
+    }
+
+    /**
+     * The pages of a source file, as read from its page tree the first time
+     * they were asked for: they are shared by all the callers, which must not
+     * change them, and they hold no reference to the file.
+     *
+     * @param handle
+     * @return
+     * @throws IOException
+     */
+    public List<Page> getPages(Handle handle) throws IOException {
+        Source source = handle.source;
+        int refreshes;
+        synchronized (source) {
+            if (source.pages != null) {
+                return source.pages;
+            }
+            refreshes = source.refreshes;
+        }
+        List<Page> pages;
+        handle.lock();
+        try {
+            PDPageTree tree = handle.getDocument().getPages();
+            pages = new ArrayList<>(tree.getCount());
+            for (PDPage pdPage : tree) {
+                PDRectangle mediaBox = pdPage.getMediaBox();
+                pages.add(new Page(pages.size(), source.file, mediaBox.getWidth(), mediaBox.getHeight(), pdPage.getRotation()));
+            }
+        } finally {
+            handle.unlock();
+        }
+        pages = Collections.unmodifiableList(pages);
+        synchronized (source) {
+            // Not kept if the file changed while it was read
+            if (source.pages == null && source.refreshes == refreshes) {
+                source.pages = pages;
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Add references to a source file that is already in use, for instance
+     * one for each page of the file added to the session.
+     *
+     * @param handle
+     * @param count
+     */
+    public synchronized void retain(Handle handle, int count) {
+        handle.source.references += count;
+    }
+
+    /**
+     * Remove references to a source file, closing its document when nobody
+     * refers to it anymore.
+     *
+     * @param file
+     * @param count
+     */
+    public void release(File file, int count) {
+        Source source;
+        synchronized (this) {
+            source = sources.get(file.getAbsoluteFile());
+        }
+        if (source != null) {
+            release(source, count);
+        }
+    }
+
+    /**
+     * Remove the references of several pages at once, one for each page.
+     *
+     * @param pages
+     */
+    public void release(Collection<Page> pages) {
+        Map<File, Integer> counts = new HashMap<>();
+        for (Page page : pages) {
+            counts.merge(page.file, 1, Integer::sum);
+        }
+        for (Map.Entry<File, Integer> count : counts.entrySet()) {
+            release(count.getKey(), count.getValue());
+        }
+    }
+
+    /**
+     * Parse a file again the next time it is used, after it was changed in
+     * place: its idle parses are closed now and the ones in use as soon as
+     * they are given back. The close listeners are told too.
+     *
+     * @param file
+     */
+    public void refresh(File file) {
+        Source source;
+        synchronized (this) {
+            source = sources.get(file.getAbsoluteFile());
+        }
+        if (source != null) {
+            synchronized (source) {
+                source.stale.addAll(source.busy);
+                source.pages = null;
+                ++source.refreshes;
+            }
+            closeIdle(source);
+        }
+        fireClosed(file.getAbsoluteFile());
+    }
+
+    /**
+     * Number of documents currently open.
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return sources.size();
+    }
+
+    /**
+     * Close all the documents, regardless of their references.
+     */
+    public void closeAll() {
+        List<Source> all;
+        synchronized (this) {
+            all = new ArrayList<>(sources.values());
+            sources.clear();
+        }
+        for (Source source : all) {
+            close(source);
+            fireClosed(source.file);
+        }
+    }
+
+    /**
+     * Take an idle parse of a file, or parse it again if all the parses are
+     * in use and another one is allowed; otherwise wait for one.
+     */
+    private PDDocument checkOut(Source source, int maxParses) throws IOException {
+        synchronized (source) {
+            while (source.idle.isEmpty() && source.parses >= maxParses) {
+                try {
+                    source.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for " + source.file);
+                }
+            }
+            if (!source.idle.isEmpty()) {
+                PDDocument document = source.idle.remove(source.idle.size() - 1);
+                source.busy.add(document);
+                return document;
+            }
+            ++source.parses;
+        }
+        // Parsed outside the lock, so that the other parses of the file stay
+        // available meanwhile
+        try {
+            long start = Metrics.PARSE.start();
+            PDDocument document = PDDocument.load(source.file, memoryUsage);
+            Metrics.PARSE.stop(start);
+            synchronized (source) {
+                source.busy.add(document);
+            }
+            return document;
+        } catch (IOException | RuntimeException ex) {
+            synchronized (source) {
+                --source.parses;
+                source.notifyAll();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Give a parse back, closing it if its file was closed or refreshed
+     * while it was in use.
+     */
+    private void checkIn(Source source, PDDocument document) {
+        synchronized (source) {
+            source.busy.remove(document);
+            if (!source.closed && !source.stale.remove(document) && source.parses <= maxParses) {
+                source.idle.add(document);
+                source.notifyAll();
+                return;
+            }
+            --source.parses;
+            source.notifyAll();
+        }
+        close(document);
+    }
+
+    private static int getParses(Source source) {
+        synchronized (source) {
+            return source.parses;
+        }
+    }
+
+    private void release(Source source, int count) {
+        synchronized (this) {
+            source.references -= count;
+            if (source.references > 0 || sources.get(source.file) != source) {
+                return;
+            }
+            sources.remove(source.file);
+        }
+        close(source);
+        fireClosed(source.file);
+    }
+
+    private void fireClosed(File file) {
+        for (Consumer<File> listener : closeListeners) {
+            listener.accept(file);
+        }
+    }
+
+    /**
+     * Close the idle parses of a file; the ones in use are closed when they
+     * are given back.
+     */
+    private static void close(Source source) {
+        synchronized (source) {
+            source.closed = true;
+        }
+        closeIdle(source);
+    }
+
+    private static void closeIdle(Source source) {
+        List<PDDocument> idle;
+        synchronized (source) {
+            source.parses -= source.idle.size();
+            idle = new ArrayList<>(source.idle);
+            source.idle.clear();
+            source.notifyAll();
+        }
+        for (PDDocument document : idle) {
+            close(document);
+        }
+    }
+
+    private static void close(PDDocument document) {
+        try {
+            document.close();
+        } catch (IOException ex) {
+            Logger.getLogger(SourceRegistry.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+}
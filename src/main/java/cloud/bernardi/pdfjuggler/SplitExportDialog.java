@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.Frame;
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.BorderFactory;
+import javax.swing.ButtonGroup;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.JRadioButton;
+import javax.swing.JScrollPane;
+import javax.swing.JSpinner;
+import javax.swing.JTextField;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
+
+/**
+ * Split export window: writes several output files at the same time, with a
+ * progress bar for each one.
+ *
+ * All the outputs take their pages from the session {@link SourceRegistry}.
+ * PDFBox documents are not thread-safe, so while the export runs the
+ * registry keeps up to one parse of each source file per writer, and
+ * outputs that share a source file are written at the same time from
+ * different parses.
+ *
+ * @author rnd
+ */
+public class SplitExportDialog extends JDialog {
+
+    private static final int DEFAULT_PAGES_PER_PART = 10;
+    private static final int VISIBLE_ROWS = 10;
+
+    private final List<List<Page>> parts;
+    private final List<File> outputs;
+    private final JProgressBar[] progressBars;
+    private final JButton btClose = new JButton("Cancel");
+    private ExecutorService executor;
+    private int finished;
+    private int failed;
+
+    /**
+     * Ask how to cut the pages into parts.
+     *
+     * @param parent
+     * @param pages
+     * @return the parts, or null if the user cancelled
+     */
+    public static List<List<Page>> showOptions(Component parent, List<Page> pages) {
+        JRadioButton rbRanges = new JRadioButton("Page ranges:", true);
+        JTextField tfRanges = new JTextField("1-" + pages.size(), 20);
+        JRadioButton rbEvery = new JRadioButton("Every N pages:");
+        JSpinner spEvery = new JSpinner(new SpinnerNumberModel(Math.min(DEFAULT_PAGES_PER_PART, pages.size()), 1, pages.size(), 1));
+        JRadioButton rbSource = new JRadioButton("At each source file");
+        ButtonGroup group = new ButtonGroup();
+        group.add(rbRanges);
+        group.add(rbEvery);
+        group.add(rbSource);
+
+        JPanel panel = new JPanel(new GridBagLayout());
+        GridBagConstraints c = new GridBagConstraints();
+        c.anchor = GridBagConstraints.WEST;
+        c.insets = new Insets(2, 2, 2, 2);
+        c.gridy = 0;
+        panel.add(rbRanges, c);
+        panel.add(tfRanges, c);
+        c.gridy = 1;
+        panel.add(rbEvery, c);
+        panel.add(spEvery, c);
+        c.gridy = 2;
+        panel.add(rbSource, c);
+
+        while (true) {
+            int result = JOptionPane.showConfirmDialog(parent, panel, "Split Export", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+            if (result != JOptionPane.OK_OPTION) {
+                return null;
+            }
+            try {
+                if (rbRanges.isSelected()) {
+                    return SplitPlan.byRanges(pages, tfRanges.getText());
+                } else if (rbEvery.isSelected()) {
+                    return SplitPlan.everyPages(pages, (Integer) spEvery.getValue());
+                } else {
+                    return SplitPlan.bySourceFile(pages);
+                }
+            } catch (IllegalArgumentException ex) {
+                JOptionPane.showMessageDialog(parent, ex.getMessage(), Const.APPNAME, JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+
+    /**
+     * Create the split export window.
+     *
+     * @param parent
+     * @param parts the pages of each output file
+     * @param outputs the output files
+     */
+    public SplitExportDialog(Frame parent, List<List<Page>> parts, List<File> outputs) {
+        super(parent, "Split Export", false);
+        this.parts = parts;
+        this.outputs = outputs;
+        progressBars = new JProgressBar[parts.size()];
+        setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
+
+        JPanel rows = new JPanel(new GridBagLayout());
+        GridBagConstraints c = new GridBagConstraints();
+        c.insets = new Insets(2, 4, 2, 4);
+        for (int i = 0; i < parts.size(); ++i) {
+            c.gridy = i;
+            c.weightx = 0;
+            c.fill = GridBagConstraints.NONE;
+            c.anchor = GridBagConstraints.WEST;
+            rows.add(new JLabel(outputs.get(i).getName()), c);
+            progressBars[i] = new JProgressBar(0, parts.get(i).size());
+            progressBars[i].setStringPainted(true);
+            progressBars[i].setString("Waiting");
+            c.weightx = 1;
+            c.fill = GridBagConstraints.HORIZONTAL;
+            rows.add(progressBars[i], c);
+        }
+        JScrollPane scrollPane = new JScrollPane(rows);
+        int rowHeight = progressBars[0].getPreferredSize().height + 4;
+        scrollPane.setPreferredSize(new Dimension(500, rowHeight * Math.min(VISIBLE_ROWS, parts.size()) + 8));
+        scrollPane.getVerticalScrollBar().setUnitIncrement(rowHeight);
+
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttons.add(btClose);
+        btClose.addActionListener(evt -> close());
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent evt) {
+                close();
+            }
+        });
+
+        getContentPane().add(scrollPane, BorderLayout.CENTER);
+        getContentPane().add(buttons, BorderLayout.SOUTH);
+        ((JPanel) getContentPane()).setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+        pack();
+        setLocationRelativeTo(parent);
+    }
+
+    /**
+     * Start writing the output files.
+     *
+     * @param registry where the source documents are taken from
+     * @param threads output files written at the same time
+     * @param maxMainMemoryBytes heap ceiling of each output file
+     */
+    public void start(SourceRegistry registry, int threads, long maxMainMemoryBytes) {
+        int workers = Math.max(1, Math.min(threads, parts.size()));
+        // The parts usually come from the same sources
+        registry.allowParses(workers);
+        PdfSaver saver = new PdfSaver(registry, maxMainMemoryBytes);
+        executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "split-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < parts.size(); ++i) {
+            final int part = i;
+            executor.submit(() -> save(saver, part));
+        }
+        executor.shutdown();
+        // The extra parses last as long as the export
+        Thread restore = new Thread(() -> {
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                registry.disallowParses(workers);
+            }
+        }, "split-export");
+        restore.setDaemon(true);
+        restore.start();
+    }
+
+    private void save(PdfSaver saver, int part) {
+        JProgressBar progressBar = progressBars[part];
+        int step = Math.max(1, parts.get(part).size() / 100);
+        boolean saved = false;
+        try {
+            saver.save(parts.get(part), outputs.get(part), (count, total) -> {
+                if (count == total || count % step == 0) {
+                    SwingUtilities.invokeLater(() -> {
+                        progressBar.setValue(count);
+                        progressBar.setString(count + "/" + total);
+                    });
+                }
+            });
+            saved = true;
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(SplitExportDialog.class.getName()).log(Level.WARNING, null, ex);
+        }
+        final boolean success = saved;
+        SwingUtilities.invokeLater(() -> {
+            progressBar.setString(success ? "Saved" : "Error");
+            partFinished(success);
+        });
+    }
+
+    private void partFinished(boolean success) {
+        ++finished;
+        if (!success) {
+            ++failed;
+        }
+        if (finished == parts.size()) {
+            btClose.setText("Close");
+            String message = failed == 0
+                    ? String.format("%d PDF files were saved correctly", finished)
+                    : String.format("Error while saving %d of %d PDF files", failed, finished);
+            JOptionPane.showMessageDialog(this, message, Const.APPNAME,
+                    failed == 0 ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private void close() {
+        if (finished < parts.size()) {
+            // The outputs being written are completed, the others are dropped
+            executor.shutdownNow();
+        }
+        dispose();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Ways to cut an arrangement of pages into several output files.
+ *
+ * @author rnd
+ */
+public class SplitPlan {
+
+    private static final Pattern RANGE = Pattern.compile("(\\d*)(-?)(\\d*)");
+
+    private SplitPlan() {
+    }
+
+    /**
+     * Cut the pages into explicit ranges, such as {@code 1-10,11-25,26-};
+     * each range is {@code N}, {@code N-M}, {@code N-} or {@code -M}, one-based.
+     *
+     * @param pages
+     * @param ranges
+     * @return
+     * @throws IllegalArgumentException if a range is malformed or out of the
+     * arrangement
+     */
+    public static List<List<Page>> byRanges(List<Page> pages, String ranges) {
+        List<List<Page>> parts = new ArrayList<>();
+        for (String token : ranges.split(",")) {
+            token = token.trim();
+            Matcher m = RANGE.matcher(token);
+            if (token.isEmpty() || token.equals("-") || !m.matches()) {
+                throw new IllegalArgumentException("Invalid page range: " + token);
+            }
+            int first = m.group(1).isEmpty() ? 1 : Integer.parseInt(m.group(1));
+            int last;
+            if (m.group(2).isEmpty()) {
+                last = first;
+            } else {
+                last = m.group(3).isEmpty() ? pages.size() : Integer.parseInt(m.group(3));
+            }
+            if (first < 1 || last < first || last > pages.size()) {
+                throw new IllegalArgumentException(String.format("Invalid page range: %s (there are %d pages)", token, pages.size()));
+            }
+            parts.add(new ArrayList<>(pages.subList(first - 1, last)));
+        }
+        return parts;
+    }
+
+    /**
+     * Cut the pages every N pages; the last part may be shorter.
+     *
+     * @param pages
+     * @param size pages of each part
+     * @return
+     */
+    public static List<List<Page>> everyPages(List<Page> pages, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Invalid number of pages: " + size);
+        }
+        List<List<Page>> parts = new ArrayList<>();
+        for (int i = 0; i < pages.size(); i += size) {
+            parts.add(new ArrayList<>(pages.subList(i, Math.min(i + size, pages.size()))));
+        }
+        return parts;
+    }
+
+    /**
+     * Cut the pages wherever two adjacent pages come from different source
+     * files.
+     *
+     * @param pages
+     * @return
+     */
+    public static List<List<Page>> bySourceFile(List<Page> pages) {
+        List<List<Page>> parts = new ArrayList<>();
+        List<Page> part = null;
+        for (Page page : pages) {
+            if (part == null || !part.get(part.size() - 1).file.equals(page.file)) {
+                part = new ArrayList<>();
+                parts.add(part);
+            }
+            part.add(page);
+        }
+        return parts;
+    }
+
+    /**
+     * Names of the output files, numbered after the base name, such as
+     * {@code out-01.pdf}, {@code out-02.pdf} for {@code out.pdf}.
+     *
+     * @param base
+     * @param count
+     * @return
+     */
+    public static List<File> outputFiles(File base, int count) {
+        String name = base.getName();
+        int dot = name.lastIndexOf('.');
+        String stem = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : ".pdf";
+        String format = "%s-%0" + Integer.toString(count).length() + "d%s";
+        List<File> files = new ArrayList<>(count);
+        for (int i = 1; i <= count; ++i) {
+            files.add(new File(base.getParentFile(), String.format(format, stem, i, extension)));
+        }
+        return files;
+    }
+}
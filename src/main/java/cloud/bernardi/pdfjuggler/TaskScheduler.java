@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the background loading and rendering tasks of the session on a fixed
+ * number of threads, by priority.
+ *
+ * Tasks with the same priority run in submission order. Every task belongs
+ * to a {@link Token}: cancelling the token drops its queued tasks, and the
+ * running ones are expected to check the token and stop early.
+ *
+ * @author rnd
+ */
+public class TaskScheduler {
+
+    /**
+     * Task priorities, from the most urgent.
+     */
+    public enum Priority {
+        /**
+         * Thumbnails of the pages the user is looking at.
+         */
+        VISIBLE,
+        /**
+         * Files that were just added.
+         */
+        LOADING,
+        /**
+         * Everything else, such as the thumbnails around the viewport.
+         */
+        PREFETCH
+    }
+
+    /**
+     * Cancellation flag shared by a group of tasks.
+     */
+    public static class Token {
+
+        private volatile boolean cancelled;
+
+        /**
+         * Whether the tasks of the group were cancelled.
+         *
+         * @return
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * A queued task, ordered by priority and then by submission.
+     */
+    private static class Task implements Runnable, Comparable<Task> {
+
+        private final Priority priority;
+        private final long sequence;
+        private final Token token;
+        private final Runnable runnable;
+
+        Task(Priority priority, long sequence, Token token, Runnable runnable) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.token = token;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            int result = priority.compareTo(other.priority);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+
+        @Override
+        public void run() {
+            if (token.isCancelled()) {
+                return;
+            }
+            try {
+                runnable.run();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(TaskScheduler.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Create a new scheduler.
+     *
+     * @param threads maximum number of tasks running at the same time
+     */
+    public TaskScheduler(int threads) {
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "task-scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Queue a task. It can be called from any thread, including the tasks
+     * themselves, for instance to queue the next step of a longer job.
+     *
+     * @param priority
+     * @param token the group the task belongs to
+     * @param task
+     */
+    public void submit(Priority priority, Token token, Runnable task) {
+        if (token.isCancelled()) {
+            return;
+        }
+        // execute() rather than submit(), so that the queue receives the
+        // comparable task itself and not a future wrapping it
+        executor.execute(new Task(priority, sequence.getAndIncrement(), token, task));
+    }
+
+    /**
+     * Cancel a group of tasks: the queued ones are dropped, and no new one is
+     * accepted.
+     *
+     * @param token
+     */
+    public void cancel(Token token) {
+        token.cancelled = true;
+        executor.getQueue().removeIf(task -> ((Task) task).token == token);
+    }
+
+    /**
+     * Number of tasks waiting to run.
+     *
+     * @return
+     */
+    public int getQueuedTasks() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Drop the queued tasks and interrupt the running ones.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
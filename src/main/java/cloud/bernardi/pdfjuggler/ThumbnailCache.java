@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.swing.ImageIcon;
+import javax.swing.SwingUtilities;
+
+/**
+ * Cache of the thumbnail icons, already scaled to the current thumbnail size.
+ *
+ * The cache is meant to be used from the event dispatch thread: a lookup that
+ * hits the cache does no image work, while a miss schedules the scaling on a
+ * background thread and returns the previous icon of the page (or a
+ * placeholder of the same size, if the thumbnail size changed) in the
+ * meanwhile. A hit also marks the stored thumbnail as recently used, so the
+ * store does not evict the pages being viewed.
+ *
+ * The icons are uncompressed, so the cache has its own byte budget, a share
+ * of the thumbnail memory next to the one of the {@link ThumbnailStore}.
+ *
+ * @author rnd
+ */
+public class ThumbnailCache {
+
+    /**
+     * Default share of the thumbnail memory given to the cached icons; the
+     * rest goes to the {@link ThumbnailStore}.
+     */
+    public static final double DEFAULT_MEMORY_SHARE = 0.25;
+
+    /**
+     * Approximate per-entry overhead of the map, the entry, the icon and the
+     * image headers, in bytes.
+     */
+    private static final int ENTRY_OVERHEAD = 512;
+
+    private final ThumbnailStore store;
+    // In access order, from the least recently used
+    private final Map<Page, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final long budget;
+    private long size;
+    private final Set<Page> scaling = new HashSet<>();
+    // Pages invalidated while they were being scaled from the old thumbnail
+    private final Set<Page> invalidated = new HashSet<>();
+    private final ExecutorService scaler = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "thumbnail-scaler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Runnable onUpdate;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private int width;
+    private int height;
+    private final Map<Integer, ImageIcon> placeholders = new HashMap<>();
+
+    /**
+     * An icon scaled for a given thumbnail size and page rotation.
+     */
+    private static class Entry {
+
+        private final int width;
+        private final int height;
+        private final int rotation;
+        private final ImageIcon icon;
+        private final boolean stale;
+
+        Entry(int width, int height, int rotation, ImageIcon icon, boolean stale) {
+            this.width = width;
+            this.height = height;
+            this.rotation = rotation;
+            this.icon = icon;
+            this.stale = stale;
+        }
+
+        private long getSize() {
+            return 4L * icon.getIconWidth() * icon.getIconHeight() + ENTRY_OVERHEAD;
+        }
+    }
+
+    /**
+     * Create a new thumbnail cache.
+     *
+     * @param store where the rendered thumbnails are kept
+     * @param budget maximum number of bytes used by the cached icons
+     * @param width thumbnail width, in pixels
+     * @param height thumbnail height, in pixels
+     * @param onUpdate called on the event dispatch thread when new icons are
+     * available
+     */
+    public ThumbnailCache(ThumbnailStore store, long budget, int width, int height, Runnable onUpdate) {
+        this.store = store;
+        this.budget = budget;
+        this.width = width;
+        this.height = height;
+        this.onUpdate = onUpdate;
+    }
+
+    /**
+     * Change the thumbnail size; the cached icons are rebuilt lazily, the
+     * next time they are requested.
+     *
+     * @param width
+     * @param height
+     */
+    public void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+        placeholders.clear();
+    }
+
+    /**
+     * Get the icon of a page, scaled to the current thumbnail size.
+     *
+     * @param page
+     * @return
+     */
+    public ImageIcon getIcon(Page page) {
+        Entry entry = entries.get(page);
+        if (entry != null && !entry.stale && entry.width == width && entry.height == height && entry.rotation == page.rotation) {
+            hits.incrementAndGet();
+            store.touch(page);
+            return entry.icon;
+        }
+        if (!store.contains(page)) {
+            return getPlaceholder(page);
+        }
+        misses.incrementAndGet();
+        if (scaling.add(page)) {
+            int rotation = page.rotation;
+            int thumbnailRotation = page.getThumbnailRotation();
+            int w = width;
+            int h = height;
+            scaler.execute(() -> {
+                long start = Metrics.SCALE.start();
+                BufferedImage source = store.get(page);
+                ImageIcon icon = source != null ? new ImageIcon(createThumbnail(source, thumbnailRotation, w, h)) : null;
+                Metrics.SCALE.stop(start);
+                SwingUtilities.invokeLater(() -> {
+                    scaling.remove(page);
+                    boolean stale = invalidated.remove(page);
+                    if (icon != null) {
+                        put(page, new Entry(w, h, rotation, icon, stale));
+                        onUpdate.run();
+                    }
+                });
+            });
+        }
+        // The placeholder has the size of the scaled icon, so the list
+        // layout is right even before the icon is ready
+        if (entry != null && entry.width == width && entry.height == height) {
+            return entry.icon;
+        }
+        return getPlaceholder(page);
+    }
+
+    /**
+     * Mark the cached icon of a page as out of date, because a thumbnail with
+     * a different resolution was stored; the old icon is still shown until
+     * the new one is scaled.
+     *
+     * @param page
+     */
+    public void invalidate(Page page) {
+        Entry entry = entries.get(page);
+        if (entry != null && !entry.stale) {
+            put(page, new Entry(entry.width, entry.height, entry.rotation, entry.icon, true));
+        }
+        if (scaling.contains(page)) {
+            invalidated.add(page);
+        }
+    }
+
+    /**
+     * Drop the cached icon of a page.
+     *
+     * @param page
+     */
+    public void remove(Page page) {
+        Entry previous = entries.remove(page);
+        if (previous != null) {
+            size -= previous.getSize();
+        }
+    }
+
+    /**
+     * Drop the cached icons of several pages at once.
+     *
+     * @param pages
+     */
+    public void remove(Collection<Page> pages) {
+        for (Page page : pages) {
+            remove(page);
+        }
+    }
+
+    /**
+     * Drop all the cached icons.
+     */
+    public void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Number of lookups that found an up-to-date icon.
+     *
+     * @return
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of lookups that required the icon to be scaled.
+     *
+     * @return
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Stop the background scaling thread.
+     */
+    public void shutdown() {
+        scaler.shutdownNow();
+    }
+
+    /**
+     * Cache the icon of a page, evicting the least recently used ones if the
+     * budget is exceeded.
+     */
+    private void put(Page page, Entry entry) {
+        Entry previous = entries.put(page, entry);
+        if (previous != null) {
+            size -= previous.getSize();
+        }
+        size += entry.getSize();
+        Iterator<Map.Entry<Page, Entry>> it = entries.entrySet().iterator();
+        while (size > budget && it.hasNext()) {
+            Map.Entry<Page, Entry> eldest = it.next();
+            if (eldest.getKey() == page) {
+                continue;
+            }
+            size -= eldest.getValue().getSize();
+            it.remove();
+        }
+    }
+
+    /**
+     * Icon shown in place of the thumbnails that are not rendered yet, with
+     * the size that the page thumbnail will have.
+     */
+    private ImageIcon getPlaceholder(Page page) {
+        int w = width;
+        int h = height;
+        if (page.width > 0 && page.height > 0) {
+            boolean sideways = page.rotation == 90 || page.rotation == 270;
+            float pageWidth = sideways ? page.height : page.width;
+            float pageHeight = sideways ? page.width : page.height;
+            if (pageHeight > pageWidth) {
+                w = Math.max(1, Math.round(pageWidth * height / pageHeight));
+            } else {
+                h = Math.max(1, Math.round(pageHeight * width / pageWidth));
+            }
+        }
+        Integer key = w << 16 | h;
+        ImageIcon placeholder = placeholders.get(key);
+        if (placeholder == null) {
+            BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2d = image.createGraphics();
+            g2d.setColor(Color.WHITE);
+            g2d.fillRect(0, 0, w, h);
+            g2d.setColor(Color.LIGHT_GRAY);
+            g2d.drawRect(0, 0, w - 1, h - 1);
+            g2d.dispose();
+            placeholder = new ImageIcon(image);
+            placeholders.put(key, placeholder);
+        }
+        return placeholder;
+    }
+
+    /**
+     * Build the image of a thumbnail icon from a stored thumbnail: rotate it
+     * and scale it to fit the thumbnail size.
+     *
+     * @param source the stored thumbnail
+     * @param rotation clockwise rotation, a multiple of 90 degrees
+     * @param width thumbnail width, in pixels
+     * @param height thumbnail height, in pixels
+     * @return
+     */
+    public static BufferedImage createThumbnail(BufferedImage source, int rotation, int width, int height) {
+        return scale(rotate(source, rotation), width, height);
+    }
+
+    /**
+     * Rotate an image clockwise by a multiple of 90 degrees, moving the
+     * pixels exactly, without any filtering.
+     */
+    private static BufferedImage rotate(BufferedImage img, int degrees) {
+        int quarters = ((degrees / 90) % 4 + 4) % 4;
+        if (quarters == 0) {
+            return img;
+        }
+        int w = img.getWidth();
+        int h = img.getHeight();
+        int[] src = img.getType() == BufferedImage.TYPE_INT_RGB
+                ? ((DataBufferInt) img.getRaster().getDataBuffer()).getData()
+                : img.getRGB(0, 0, w, h, null, 0, w);
+        int dw = quarters == 2 ? w : h;
+        int dh = quarters == 2 ? h : w;
+        BufferedImage rotated = new BufferedImage(dw, dh, BufferedImage.TYPE_INT_RGB);
+        int[] dst = ((DataBufferInt) rotated.getRaster().getDataBuffer()).getData();
+        for (int y = 0, i = 0; y < h; ++y) {
+            for (int x = 0; x < w; ++x, ++i) {
+                switch (quarters) {
+                    case 1:
+                        dst[x * dw + (h - 1 - y)] = src[i];
+                        break;
+                    case 2:
+                        dst[(h - 1 - y) * dw + (w - 1 - x)] = src[i];
+                        break;
+                    default:
+                        dst[(w - 1 - x) * dw + y] = src[i];
+                        break;
+                }
+            }
+        }
+        return rotated;
+    }
+
+    /**
+     * Scale an image to fit the thumbnail size, keeping its aspect ratio,
+     * with a single bilinear pass.
+     */
+    private static BufferedImage scale(BufferedImage img, int thumbWidth, int thumbHeight) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        int newW;
+        int newH;
+        if (h > w) {
+            newH = thumbHeight;
+            newW = Math.max(1, w * thumbHeight / h);
+        } else {
+            newW = thumbWidth;
+            newH = Math.max(1, h * thumbWidth / w);
+        }
+        BufferedImage dimg = new BufferedImage(newW, newH, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = dimg.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.drawImage(img, 0, 0, newW, newH, null);
+        g2d.dispose();
+        return dimg;
+    }
+}
@@ -0,0 +1,523 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+
+/**
+ * Thumbnail rendering engine that splits a document into page ranges and
+ * renders them on a fork-join pool.
+ *
+ * PDFBox documents are not thread-safe, so every range of pages is rendered
+ * on a copy of the document that no other worker uses meanwhile: the copies
+ * of each file are pooled and kept open between two requests, so rendering a
+ * few more pages of a file does not parse it again, until the file is closed
+ * with {@link #close(File)}. The number of idle copies is capped across all
+ * the files, the least recently used being closed first.
+ *
+ * Pages that carry an embedded thumbnail image (/Thumb), as many scanners
+ * write, are not rendered at all when that image is big enough: decoding it
+ * is far cheaper than interpreting the page contents.
+ *
+ * @author rnd
+ */
+public class ThumbnailRenderer {
+
+    /**
+     * Receives the rendered thumbnails, strictly in page order.
+     */
+    public interface Listener {
+
+        /**
+         * Called once per page, in ascending page order.
+         *
+         * @param page zero-based page index
+         * @param image rendered thumbnail
+         * @param embedded whether the thumbnail is the one embedded in the
+         * file rather than a rendering of the page
+         */
+        void pageRendered(int page, BufferedImage image, boolean embedded);
+    }
+
+    /**
+     * Number of page ranges created for each worker thread, so that the work
+     * stealing can balance pages that are slower to render than others.
+     */
+    private static final int RANGES_PER_WORKER = 4;
+
+    /**
+     * Number of documents kept open for each worker thread, counted across
+     * all the files.
+     */
+    private static final int DOCUMENTS_PER_WORKER = 4;
+
+    /**
+     * Maximum relative difference between the aspect ratio of an embedded
+     * thumbnail and the one of its page.
+     */
+    private static final float MAX_ASPECT_DIFFERENCE = 0.05f;
+
+    private final ForkJoinPool pool;
+    private final AtomicLong embeddedPages = new AtomicLong();
+    private final AtomicLong renderedPages = new AtomicLong();
+    // Copies not in use, from the least recently used; this set also guards
+    // the other fields of the pool
+    private final Set<WorkerDocument> idleDocuments = new LinkedHashSet<>();
+    // All the open copies, idle or in use, by file
+    private final Map<File, Set<WorkerDocument>> openDocuments = new HashMap<>();
+    private final int maxDocuments;
+    private int documentCount;
+    private long closes;
+
+    /**
+     * Create a new rendering engine.
+     *
+     * @param parallelism number of worker threads
+     */
+    public ThumbnailRenderer(int parallelism) {
+        pool = new ForkJoinPool(Math.max(1, parallelism));
+        maxDocuments = pool.getParallelism() * DOCUMENTS_PER_WORKER;
+    }
+
+    /**
+     * Number of worker threads.
+     *
+     * @return
+     */
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Number of thumbnails taken from the images embedded in the files.
+     *
+     * @return
+     */
+    public long getEmbeddedPages() {
+        return embeddedPages.get();
+    }
+
+    /**
+     * Number of thumbnails obtained by rendering the pages.
+     *
+     * @return
+     */
+    public long getRenderedPages() {
+        return renderedPages.get();
+    }
+
+    /**
+     * Render the thumbnails of all the pages of a PDF file. The method blocks
+     * until every page has been rendered and delivered to the listener.
+     *
+     * @param pdfFile
+     * @param numPages
+     * @param dpi
+     * @param listener
+     * @throws IOException
+     */
+    public void render(File pdfFile, int numPages, int dpi, Listener listener) throws IOException {
+        render(pdfFile, 0, numPages, dpi, listener);
+    }
+
+    /**
+     * Render the thumbnails of a range of pages of a PDF file. The method
+     * blocks until every page has been rendered and delivered to the
+     * listener.
+     *
+     * @param pdfFile
+     * @param from first page to render (zero-based, inclusive)
+     * @param to last page to render (zero-based, exclusive)
+     * @param dpi
+     * @param listener
+     * @throws IOException
+     */
+    public void render(File pdfFile, int from, int to, int dpi, Listener listener) throws IOException {
+        render(pdfFile, from, to, dpi, () -> false, listener);
+    }
+
+    /**
+     * Render the thumbnails of a range of pages of a PDF file, unless the
+     * rendering is cancelled: the workers check the cancellation before each
+     * page, and the method returns as soon as they have all stopped, without
+     * delivering the pages that were skipped.
+     *
+     * @param pdfFile
+     * @param from first page to render (zero-based, inclusive)
+     * @param to last page to render (zero-based, exclusive)
+     * @param dpi
+     * @param cancelled tells whether the rendering was cancelled
+     * @param listener
+     * @throws IOException
+     */
+    public void render(File pdfFile, int from, int to, int dpi, BooleanSupplier cancelled, Listener listener) throws IOException {
+        if (to <= from) {
+            return;
+        }
+        int rangeSize = Math.max(1, (to - from) / (pool.getParallelism() * RANGES_PER_WORKER));
+        RenderJob job = new RenderJob(pdfFile, from, to, dpi, cancelled, listener);
+        try {
+            pool.invoke(new RenderRange(job, from, to, rangeSize));
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Close the copies of a file parsed by the workers, for instance when
+     * the file is not used anymore or it has changed: the next request
+     * parses it again. A copy in use is closed as soon as its worker is done
+     * with it. It can be called from any thread.
+     *
+     * @param pdfFile
+     */
+    public void close(File pdfFile) {
+        List<WorkerDocument> idle = new ArrayList<>();
+        synchronized (idleDocuments) {
+            ++closes;
+            Set<WorkerDocument> copies = openDocuments.get(pdfFile.getAbsoluteFile());
+            if (copies != null) {
+                for (WorkerDocument workerDocument : new ArrayList<>(copies)) {
+                    if (idleDocuments.remove(workerDocument)) {
+                        forget(workerDocument);
+                        idle.add(workerDocument);
+                    } else {
+                        workerDocument.released = true;
+                    }
+                }
+            }
+        }
+        for (WorkerDocument workerDocument : idle) {
+            close(workerDocument.document);
+        }
+    }
+
+    /**
+     * Stop the worker threads and close the documents they were using.
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+        List<File> files;
+        synchronized (idleDocuments) {
+            files = new ArrayList<>(openDocuments.keySet());
+        }
+        for (File file : files) {
+            close(file);
+        }
+    }
+
+    /**
+     * Decode the thumbnail image embedded in a page, if there is one and it
+     * is at least as big as a rendering of the page at the specified
+     * resolution.
+     *
+     * The PDF specification does not say whether the embedded image follows
+     * the /Rotate entry of the page, so only unrotated pages are considered;
+     * the image must also have the proportions of the page.
+     *
+     * @param document
+     * @param pageIndex zero-based page index
+     * @param dpi
+     * @return the thumbnail, or null if the page has to be rendered
+     */
+    public static BufferedImage getEmbeddedThumbnail(PDDocument document, int pageIndex, int dpi) {
+        PDPage page = document.getPage(pageIndex);
+        COSBase thumb = page.getCOSObject().getDictionaryObject(COSName.THUMB);
+        if (!(thumb instanceof COSStream) || page.getRotation() != 0) {
+            return null;
+        }
+        // Same size as the image of PDFRenderer.renderImageWithDPI()
+        PDRectangle cropBox = page.getCropBox();
+        int width = Math.max(1, (int) Math.floor(cropBox.getWidth() * dpi / 72));
+        int height = Math.max(1, (int) Math.floor(cropBox.getHeight() * dpi / 72));
+        COSStream stream = (COSStream) thumb;
+        int thumbWidth = stream.getInt(COSName.WIDTH);
+        int thumbHeight = stream.getInt(COSName.HEIGHT);
+        if (thumbWidth < width || thumbHeight < height
+                || Math.abs((float) thumbWidth / thumbHeight - cropBox.getWidth() / cropBox.getHeight())
+                > MAX_ASPECT_DIFFERENCE * cropBox.getWidth() / cropBox.getHeight()) {
+            return null;
+        }
+        try {
+            BufferedImage image = new PDImageXObject(new PDStream(stream), page.getResources()).getImage();
+            // Same pixel format as the rendered thumbnails
+            BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2d = rgb.createGraphics();
+            g2d.drawImage(image, 0, 0, Color.WHITE, null);
+            g2d.dispose();
+            return rgb;
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(ThumbnailRenderer.class.getName()).log(Level.WARNING, null, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Check out a copy of a file for the exclusive use of the current worker,
+     * taking an idle one or parsing the file again if they are all in use.
+     * The copy is to be given back with {@link #release(WorkerDocument)}.
+     */
+    private WorkerDocument getWorkerDocument(File pdfFile) throws IOException {
+        File file = pdfFile.getAbsoluteFile();
+        long closesBefore;
+        synchronized (idleDocuments) {
+            Set<WorkerDocument> copies = openDocuments.get(file);
+            if (copies != null) {
+                for (WorkerDocument workerDocument : copies) {
+                    if (idleDocuments.remove(workerDocument)) {
+                        return workerDocument;
+                    }
+                }
+            }
+            closesBefore = closes;
+        }
+        long start = Metrics.PARSE.start();
+        WorkerDocument workerDocument = new WorkerDocument(file, PDDocument.load(file));
+        Metrics.PARSE.stop(start);
+        synchronized (idleDocuments) {
+            openDocuments.computeIfAbsent(file, key -> new HashSet<>()).add(workerDocument);
+            ++documentCount;
+            // The file may have changed while it was parsed
+            workerDocument.released = closes != closesBefore;
+        }
+        return workerDocument;
+    }
+
+    /**
+     * Give back a copy taken with {@link #getWorkerDocument(File)}, closing
+     * it if its file was closed meanwhile, and close the least recently used
+     * idle copies beyond the cap.
+     */
+    private void release(WorkerDocument workerDocument) {
+        List<WorkerDocument> evicted = new ArrayList<>();
+        synchronized (idleDocuments) {
+            if (workerDocument.released) {
+                forget(workerDocument);
+                evicted.add(workerDocument);
+            } else {
+                idleDocuments.add(workerDocument);
+                Iterator<WorkerDocument> it = idleDocuments.iterator();
+                while (documentCount > maxDocuments && it.hasNext()) {
+                    WorkerDocument eldest = it.next();
+                    it.remove();
+                    forget(eldest);
+                    evicted.add(eldest);
+                }
+            }
+        }
+        for (WorkerDocument closed : evicted) {
+            close(closed.document);
+        }
+    }
+
+    /**
+     * Remove a copy from the pool, before closing it; the caller holds the
+     * pool lock.
+     */
+    private void forget(WorkerDocument workerDocument) {
+        Set<WorkerDocument> copies = openDocuments.get(workerDocument.file);
+        if (copies != null && copies.remove(workerDocument)) {
+            --documentCount;
+            if (copies.isEmpty()) {
+                openDocuments.remove(workerDocument.file);
+            }
+        }
+    }
+
+    private static void close(PDDocument document) {
+        try {
+            document.close();
+        } catch (IOException ex) {
+            Logger.getLogger(ThumbnailRenderer.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * A copy of a document parsed by the workers, together with its
+     * renderer. It is used by one worker at a time, and it is closed when
+     * given back if its file was closed while it was in use.
+     */
+    private static class WorkerDocument {
+
+        private final File file;
+        private final PDDocument document;
+        private final PDFRenderer renderer;
+        // Guarded by the pool lock
+        private boolean released;
+
+        WorkerDocument(File file, PDDocument document) {
+            this.file = file;
+            this.document = document;
+            renderer = new PDFRenderer(document);
+        }
+    }
+
+    /**
+     * State shared by all the ranges of a single rendering request.
+     */
+    private class RenderJob {
+
+        private final File pdfFile;
+        private final int from;
+        private final int dpi;
+        private final BooleanSupplier cancelled;
+        private final Listener listener;
+        private final BufferedImage[] pending;
+        private final boolean[] embedded;
+        private int nextPage;
+        private boolean delivering;
+
+        RenderJob(File pdfFile, int from, int to, int dpi, BooleanSupplier cancelled, Listener listener) {
+            this.pdfFile = pdfFile;
+            this.from = from;
+            this.dpi = dpi;
+            this.cancelled = cancelled;
+            this.listener = listener;
+            pending = new BufferedImage[to - from];
+            embedded = new boolean[to - from];
+        }
+
+        /**
+         * Store a rendered page and deliver all the pages that are now
+         * contiguous with the last delivered one.
+         *
+         * The listener is called outside the lock, by one thread at a time:
+         * the thread that is delivering also takes the pages published
+         * meanwhile, so the others go back to rendering instead of waiting
+         * for the listener.
+         */
+        void publish(int page, BufferedImage image, boolean isEmbedded) {
+            synchronized (this) {
+                pending[page - from] = image;
+                embedded[page - from] = isEmbedded;
+                if (delivering) {
+                    return;
+                }
+                delivering = true;
+            }
+            try {
+                while (true) {
+                    int index;
+                    BufferedImage ready;
+                    boolean readyEmbedded;
+                    synchronized (this) {
+                        if (nextPage >= pending.length || pending[nextPage] == null) {
+                            delivering = false;
+                            return;
+                        }
+                        index = from + nextPage;
+                        ready = pending[nextPage];
+                        readyEmbedded = embedded[nextPage];
+                        pending[nextPage] = null;
+                        ++nextPage;
+                    }
+                    listener.pageRendered(index, ready, readyEmbedded);
+                }
+            } catch (RuntimeException | Error ex) {
+                synchronized (this) {
+                    delivering = false;
+                }
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Render a range of pages, splitting it in halves until it is small
+     * enough.
+     */
+    private class RenderRange extends RecursiveAction {
+
+        private final RenderJob job;
+        private final int from;
+        private final int to;
+        private final int rangeSize;
+
+        RenderRange(RenderJob job, int from, int to, int rangeSize) {
+            this.job = job;
+            this.from = from;
+            this.to = to;
+            this.rangeSize = rangeSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > rangeSize) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RenderRange(job, from, middle, rangeSize),
+                        new RenderRange(job, middle, to, rangeSize));
+                return;
+            }
+            WorkerDocument workerDocument;
+            try {
+                workerDocument = getWorkerDocument(job.pdfFile);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            try {
+                for (int page = from; page < to && !job.cancelled.getAsBoolean(); ++page) {
+                    long start = Metrics.EMBEDDED.start();
+                    BufferedImage image = getEmbeddedThumbnail(workerDocument.document, page, job.dpi);
+                    if (image != null) {
+                        Metrics.EMBEDDED.stop(start);
+                        embeddedPages.incrementAndGet();
+                        job.publish(page, image, true);
+                    } else {
+                        start = Metrics.RENDER.start();
+                        image = workerDocument.renderer.renderImageWithDPI(page, job.dpi, ImageType.RGB);
+                        Metrics.RENDER.stop(start);
+                        renderedPages.incrementAndGet();
+                        job.publish(page, image, false);
+                    }
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            } finally {
+                release(workerDocument);
+            }
+        }
+    }
+}
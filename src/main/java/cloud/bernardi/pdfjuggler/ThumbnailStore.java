@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2020 Paolo Bernardi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cloud.bernardi.pdfjuggler;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Memory-bounded store of the rendered thumbnails.
+ *
+ * The pixels are kept as deflated, packed RGB bytes and decoded to an image
+ * only when a thumbnail icon has to be built. When the store exceeds its byte
+ * budget, the least recently used thumbnails are evicted; they are rendered
+ * again if their pages are shown later on. Each page keeps a single
+ * thumbnail: storing a new resolution replaces the old one.
+ *
+ * @author rnd
+ */
+public class ThumbnailStore {
+
+    /**
+     * Default memory for the thumbnails, in megabytes, shared between the
+     * store and the {@link ThumbnailCache} icons.
+     */
+    public static final int DEFAULT_BUDGET_MB = 64;
+
+    /**
+     * Approximate per-entry overhead of the map, the entry and the array
+     * headers, in bytes.
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    // In insertion order, from the least recently used: storing, decoding and
+    // touching a thumbnail move it to the end, while the lookups for the
+    // bookkeeping leave the order alone
+    private final Map<Page, Compressed> entries = new LinkedHashMap<>(1024, 0.75f, false);
+    private final long budget;
+    private long size;
+
+    /**
+     * A thumbnail in compact form.
+     */
+    public static class Compressed {
+
+        private final int width;
+        private final int height;
+        private final int dpi;
+        private final byte[] data;
+
+        private Compressed(int width, int height, int dpi, byte[] data) {
+            this.width = width;
+            this.height = height;
+            this.dpi = dpi;
+            this.data = data;
+        }
+
+        private long getSize() {
+            return data.length + ENTRY_OVERHEAD;
+        }
+    }
+
+    /**
+     * Create a new thumbnail store.
+     *
+     * @param budget maximum number of bytes used by the store
+     */
+    public ThumbnailStore(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Compress a thumbnail; this is the expensive part of storing it, so it
+     * is meant to be done outside of the event dispatch thread.
+     *
+     * @param image
+     * @param dpi resolution the thumbnail was rendered at
+     * @return
+     */
+    public static Compressed compress(BufferedImage image, int dpi) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int[] rgb = image.getRGB(0, 0, w, h, null, 0, w);
+        byte[] packed = new byte[rgb.length * 3];
+        for (int i = 0, j = 0; i < rgb.length; ++i) {
+            packed[j++] = (byte) (rgb[i] >> 16);
+            packed[j++] = (byte) (rgb[i] >> 8);
+            packed[j++] = (byte) rgb[i];
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(packed);
+            deflater.finish();
+            byte[] buffer = new byte[packed.length + 64];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            return new Compressed(w, h, dpi, Arrays.copyOf(buffer, length));
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decode a compressed thumbnail.
+     *
+     * @param compressed
+     * @return
+     */
+    public static BufferedImage decompress(Compressed compressed) {
+        int w = compressed.width;
+        int h = compressed.height;
+        byte[] packed = new byte[w * h * 3];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.data);
+            int length = 0;
+            while (length < packed.length && !inflater.finished()) {
+                length += inflater.inflate(packed, length, packed.length - length);
+            }
+        } catch (DataFormatException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            inflater.end();
+        }
+        int[] rgb = new int[w * h];
+        for (int i = 0, j = 0; i < rgb.length; ++i) {
+            rgb[i] = (packed[j++] & 0xff) << 16 | (packed[j++] & 0xff) << 8 | (packed[j++] & 0xff);
+        }
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, w, h, rgb, 0, w);
+        return image;
+    }
+
+    /**
+     * Store the thumbnail of a page, evicting the least recently used ones if
+     * the budget is exceeded.
+     *
+     * @param page
+     * @param compressed
+     * @return the pages whose thumbnails were evicted
+     */
+    public synchronized List<Page> put(Page page, Compressed compressed) {
+        Compressed previous = entries.remove(page);
+        entries.put(page, compressed);
+        if (previous != null) {
+            size -= previous.getSize();
+        }
+        size += compressed.getSize();
+        List<Page> evicted = new ArrayList<>();
+        Iterator<Map.Entry<Page, Compressed>> it = entries.entrySet().iterator();
+        while (size > budget && it.hasNext()) {
+            Map.Entry<Page, Compressed> eldest = it.next();
+            if (eldest.getKey() == page) {
+                continue;
+            }
+            size -= eldest.getValue().getSize();
+            evicted.add(eldest.getKey());
+            it.remove();
+        }
+        return evicted;
+    }
+
+    /**
+     * Get the decoded thumbnail of a page; it becomes the most recently used.
+     *
+     * @param page
+     * @return the thumbnail, or null if it is not stored
+     */
+    public BufferedImage get(Page page) {
+        Compressed compressed;
+        synchronized (this) {
+            compressed = entries.remove(page);
+            if (compressed != null) {
+                entries.put(page, compressed);
+            }
+        }
+        return compressed != null ? decompress(compressed) : null;
+    }
+
+    /**
+     * Mark the thumbnail of a page as the most recently used, because its
+     * icon was shown, without decoding it.
+     *
+     * @param page
+     */
+    public synchronized void touch(Page page) {
+        Compressed compressed = entries.remove(page);
+        if (compressed != null) {
+            entries.put(page, compressed);
+        }
+    }
+
+    /**
+     * Check whether the thumbnail of a page is stored.
+     *
+     * @param page
+     * @return
+     */
+    public synchronized boolean contains(Page page) {
+        return entries.containsKey(page);
+    }
+
+    /**
+     * Resolution of the stored thumbnail of a page.
+     *
+     * @param page
+     * @return the render DPI, or 0 if the thumbnail is not stored
+     */
+    public synchronized int getDpi(Page page) {
+        Compressed compressed = entries.get(page);
+        return compressed != null ? compressed.dpi : 0;
+    }
+
+    /**
+     * Drop the thumbnail of a page.
+     *
+     * @param page
+     */
+    public synchronized void remove(Page page) {
+        Compressed previous = entries.remove(page);
+        if (previous != null) {
+            size -= previous.getSize();
+        }
+    }
+
+    /**
+     * Drop the thumbnails of several pages at once.
+     *
+     * @param pages
+     */
+    public synchronized void remove(Collection<Page> pages) {
+        for (Page page : pages) {
+            Compressed previous = entries.remove(page);
+            if (previous != null) {
+                size -= previous.getSize();
+            }
+        }
+    }
+
+    /**
+     * Drop all the thumbnails.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Number of bytes currently used by the store.
+     *
+     * @return
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+}